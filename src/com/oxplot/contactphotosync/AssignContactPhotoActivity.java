@@ -24,7 +24,6 @@ package com.oxplot.contactphotosync;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -32,7 +31,11 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import android.accounts.Account;
 import android.app.Activity;
@@ -42,7 +45,6 @@ import android.app.ProgressDialog;
 import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnCancelListener;
@@ -53,8 +55,8 @@ import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.CompressFormat;
 import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapFactory.Options;
@@ -64,7 +66,10 @@ import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.GroupMembership;
 import android.provider.ContactsContract.CommonDataKinds.Photo;
@@ -104,11 +109,6 @@ public class AssignContactPhotoActivity extends Activity {
    */
   private static final String TAG = "AssignContactPhoto";
 
-  /**
-   * JPEG quality of thumbnails saved to app's disk cache.
-   */
-  private static final int THUMB_QUALITY = 90;
-
   /**
    * Request code for starting activity to pick an image file.
    */
@@ -119,12 +119,6 @@ public class AssignContactPhotoActivity extends Activity {
    */
   private static final int REQ_CODE_CROP_IMAGE = 99;
 
-  /**
-   * Maximum number of thumbnails kept in memory cache above which the cache is
-   * completely flushed.
-   */
-  private static final int THUMB_MEM_CACHE_LIMIT = 100;
-
   /**
    * Gmail group id for "My Contacts" group which contains all the contacts that
    * have been specifically added by the user as opposed to those that are
@@ -132,13 +126,6 @@ public class AssignContactPhotoActivity extends Activity {
    */
   private static final String MY_CONTACTS_GROUP = "6";
 
-  /**
-   * Directory name under application's cache directory for storing contact
-   * thumbnails. The thumbnails are used to speed up the viewing of contact
-   * photos once the app is first resumed.
-   */
-  private static final String DISK_CACHE_DIR = "thumbcache";
-
   /**
    * Google account type.
    */
@@ -193,12 +180,18 @@ public class AssignContactPhotoActivity extends Activity {
    * In memory cache of thumbnails used to speed up rendering contact photos in
    * the list.
    */
-  private SparseArray<Drawable> thumbMemCache;
+  private ThumbCache thumbMemCache;
+
+  /**
+   * Thumbnails kept on disk to speed up the viewing of contact photos once the
+   * app is first resumed.
+   */
+  private ThumbStore thumbStore;
 
   /**
-   * Async tasks currently running (mostly thumbnails retrievers).
+   * Loads thumbnails missing from {@link #thumbMemCache}.
    */
-  private Set<AsyncTask<?, ?, ?>> asyncTasks;
+  private ThumbLoader thumbLoader;
 
   /**
    * The default thumbnail for when a contact is lacking a photo.
@@ -254,10 +247,6 @@ public class AssignContactPhotoActivity extends Activity {
       pickedRawContact = savedState.getInt("picked_raw_contact", 0);
     }
 
-    // Initialize cache directory
-
-    new File(getCacheDir(), DISK_CACHE_DIR).mkdir();
-
     unchangedThumb = new BitmapDrawable(getResources(), Bitmap.createBitmap(1,
         1, Config.ALPHA_8));
 
@@ -277,8 +266,10 @@ public class AssignContactPhotoActivity extends Activity {
     account = getIntent().getStringExtra("account");
     setTitle(account);
 
-    thumbMemCache = new SparseArray<Drawable>();
-    asyncTasks = new HashSet<AsyncTask<?, ?, ?>>();
+    thumbMemCache = ThumbCache.getInstance(this);
+    thumbStore = ThumbStore.getInstance(this);
+    thumbLoader = new ThumbLoader(Math.max(1,
+        getResources().getInteger(R.integer.config_thumb_loader_threads)));
     defaultThumb = getResources().getDrawable(R.drawable.new_picture);
 
     contactList.setOnItemClickListener(new OnItemClickListener() {
@@ -315,79 +306,33 @@ public class AssignContactPhotoActivity extends Activity {
 
   /**
    * Stores the given {@link Drawable} for raw contact with <code>id</code> to
-   * in-memory cache. If the cache is already full (ie
-   * {@link THUMB_MEM_CACHE_LIMIT} number of elements or more), the cache is
-   * flushed completely and <code>d</code> added.
+   * in-memory cache, evicting least recently used thumbnails if the cache is
+   * full.
    * 
    * @param id
    *          Raw contact Id
    * @param d
-   *          Thumbnail to store
+   *          Thumbnail to store, either {@link #defaultThumb} or a
+   *          {@link BitmapDrawable}
    */
   private void putToThumbMemCache(int id, Drawable d) {
-    // XXX very naive way of doing this
-    if (thumbMemCache.size() >= THUMB_MEM_CACHE_LIMIT)
-      thumbMemCache.clear();
-    thumbMemCache.put(id, d);
+    thumbMemCache.put(id, d == defaultThumb ? ThumbCache.NO_PHOTO
+        : ((BitmapDrawable) d).getBitmap());
   }
 
   /**
-   * Removes a thumbnail from disk cache.
+   * Loads thumbnail from in-memory cache for the given contact.
    * 
    * @param id
    *          Raw contact Id
+   * @return Thumbnail otherwise <code>null</code> if it's not cached.
    */
-  private void removeDiskCache(int id) {
-    new File(new File(getCacheDir(), DISK_CACHE_DIR), "" + id).delete();
-  }
-
-  /**
-   * Stores <code>bitmap</code> as thumbnail for the given contact with raw
-   * contact <code>id</code> in app's disk cache.
-   * 
-   * @param id
-   *          Raw contact id.
-   * @param bitmap
-   *          Thumbnail
-   */
-  private void writeDiskCache(int id, Bitmap bitmap) {
-    File file = new File(new File(getCacheDir(), DISK_CACHE_DIR), "" + id);
-    FileOutputStream stream = null;
-    try {
-      stream = new FileOutputStream(file);
-      bitmap.compress(CompressFormat.JPEG, THUMB_QUALITY, stream);
-    } catch (IOException e) {
-      e.printStackTrace();
-    } finally {
-      if (stream != null)
-        try {
-          stream.close();
-        } catch (IOException e) {}
-    }
-  }
-
-  /**
-   * Loads thumbnail from disk cache for the given contact.
-   * 
-   * @param id
-   *          Raw contact Id
-   * @return Thumbnail otherwise <code>null</code> if no thumbnail exists for
-   *         the contact or if an error occurs while loading.
-   */
-  private Bitmap readDiskCache(int id) {
-    File file = new File(new File(getCacheDir(), DISK_CACHE_DIR), "" + id);
-    FileInputStream stream = null;
-    Bitmap result = null;
-    try {
-      stream = new FileInputStream(file);
-      result = BitmapFactory.decodeStream(stream);
-    } catch (IOException e) {} finally {
-      if (stream != null)
-        try {
-          stream.close();
-        } catch (IOException e) {}
-    }
-    return result;
+  private Drawable getFromThumbMemCache(int id) {
+    Bitmap bitmap = thumbMemCache.get(id);
+    if (bitmap == null)
+      return null;
+    return bitmap == ThumbCache.NO_PHOTO ? defaultThumb : new BitmapDrawable(
+        getResources(), bitmap);
   }
 
   protected void onActivityResult(int requestCode, int resultCode,
@@ -520,6 +465,7 @@ public class AssignContactPhotoActivity extends Activity {
       // XXX This is ugly and hackish. This of course doesn't stop us from being
       // lazy and using it here.
 
+      thumbMemCache.evictAll();
       onPause();
       onResume();
       break;
@@ -531,6 +477,7 @@ public class AssignContactPhotoActivity extends Activity {
   protected void onDestroy() {
     if (storeImageTask != null)
       storeImageTask.cancel(true);
+    thumbLoader.shutdown();
     super.onDestroy();
   }
 
@@ -545,12 +492,10 @@ public class AssignContactPhotoActivity extends Activity {
     // ContentResolver.setSyncAutomatically(a, CONTACT_PHOTO_AUTHORITY,
     // contactPhotoSyncAuto);
 
-    thumbMemCache.clear();
+    Log.d(TAG, thumbMemCache.toString());
     if (contactsLoader != null)
       contactsLoader.cancel(false);
-    for (AsyncTask<?, ?, ?> lt : asyncTasks)
-      lt.cancel(false);
-    asyncTasks.clear();
+    thumbLoader.cancelAll();
     super.onPause();
   }
 
@@ -573,81 +518,249 @@ public class AssignContactPhotoActivity extends Activity {
   }
 
   /**
-   * Loads a single thumbnail on a background thread.
+   * Loads thumbnails on a bounded pool of background threads, most recently
+   * requested first so that rows just scrolled into view are served before
+   * those flung past. There is at most one load per raw contact at a time,
+   * shared by all views showing the contact, and a load is cancelled once no
+   * view is waiting for it. All methods must be called on the UI thread.
    */
-  private class LoadThumbTask extends AsyncTask<Integer, Void, Drawable> {
+  private class ThumbLoader {
+
+    private final ThreadPoolExecutor executor;
+    private final Handler handler = new Handler();
+    private final SparseArray<ThumbRequest> pending = new SparseArray<ThumbRequest>();
+
+    public ThumbLoader(int threads) {
+      executor = new ThreadPoolExecutor(threads, threads, 0,
+          TimeUnit.MILLISECONDS, new LinkedBlockingDeque<Runnable>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public boolean offer(Runnable r) {
+              return offerFirst(r);
+            }
+          }, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+              return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                  Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                  r.run();
+                }
+              }, "ThumbLoader");
+            }
+          });
+    }
 
     /**
-     * Raw contact ID of the contact to load the thumbnail for.
+     * Shows the thumbnail of raw contact <code>id</code> in <code>view</code>
+     * once it's loaded, dropping whatever load the view was waiting for
+     * before. Until then, the view shows the thumbnail from the disk cache or
+     * the default thumbnail.
+     * 
+     * @param photoFileId ID of the photo file of the contact or -1 if it has
+     *          none.
      */
-    private int rawContactId;
+    public void load(ImageView view, int id, long photoFileId) {
+      ThumbRequest request = (ThumbRequest) view.getTag();
+      if (request == null || request.rawContactId != id) {
+        unbind(view);
+        request = pending.get(id);
+        if (request == null) {
+          request = new ThumbRequest(id, photoFileId);
+          pending.put(id, request);
+          request.future = executor.submit(request);
+        }
+        request.views.add(view);
+        view.setTag(request);
+      }
+      view.setBackgroundDrawable(request.shown != null ? request.shown
+          : defaultThumb);
+    }
 
-    @Override
-    protected Drawable doInBackground(Integer... params) {
-      AssetFileDescriptor fd = null;
-      InputStream is = null;
-      BitmapFactory.Options opts;
+    /**
+     * Stops <code>view</code> from waiting for a thumbnail. The load is
+     * cancelled and dropped from the queue if no other view is waiting for it.
+     */
+    public void unbind(ImageView view) {
+      ThumbRequest request = (ThumbRequest) view.getTag();
+      if (request == null)
+        return;
+      view.setTag(null);
+      request.views.remove(view);
+      if (request.views.isEmpty()) {
+        pending.remove(request.rawContactId);
+        request.cancel();
+        executor.purge();
+      }
+    }
 
-      rawContactId = params[0];
-      BitmapDrawable result = null;
-      Uri rawContactPhotoUri = Uri.withAppendedPath(
-          ContentUris.withAppendedId(RawContacts.CONTENT_URI, rawContactId),
-          RawContacts.DisplayPhoto.CONTENT_DIRECTORY);
-      try {
+    public void cancelAll() {
+      for (int i = 0; i < pending.size(); i++) {
+        ThumbRequest request = pending.valueAt(i);
+        for (ImageView view : request.views)
+          view.setTag(null);
+        request.cancel();
+      }
+      pending.clear();
+      executor.purge();
+    }
 
-        // Get the bounds for later resampling
+    public void shutdown() {
+      cancelAll();
+      executor.shutdown();
+    }
 
-        fd = getContentResolver().openAssetFileDescriptor(rawContactPhotoUri,
-            "r");
-        is = fd.createInputStream();
-        opts = new Options();
-        opts.inJustDecodeBounds = true;
-        BitmapFactory.decodeStream(is, null, opts);
-        is.close();
-        fd.close();
+    /**
+     * Hands a thumbnail over to the UI thread.
+     * 
+     * @param last <code>true</code> if the load is done with this thumbnail.
+     */
+    private void deliver(final ThumbRequest request, final Drawable thumb,
+        final boolean last) {
+      handler.post(new Runnable() {
+        @Override
+        public void run() {
+          if (request.cancelled)
+            return;
+          if (thumb != unchangedThumb)
+            request.shown = thumb;
+          if (!last) {
+            for (ImageView view : request.views)
+              view.setBackgroundDrawable(thumb);
+            return;
+          }
+          pending.remove(request.rawContactId);
+          Drawable result = request.shown != null ? request.shown
+              : defaultThumb;
+          putToThumbMemCache(request.rawContactId, result);
+          for (ImageView view : request.views) {
+            view.setTag(null);
+            view.setBackgroundDrawable(result);
+          }
+        }
+      });
+    }
 
-        opts.inSampleSize = opts.outHeight / thumbSize;
-        opts.inSampleSize = opts.inSampleSize < 1 ? 1 : opts.inSampleSize;
-        opts.inJustDecodeBounds = false;
-        fd = getContentResolver().openAssetFileDescriptor(rawContactPhotoUri,
-            "r");
-        is = fd.createInputStream();
+    /**
+     * Load of a single thumbnail from the disk cache, or from the contact
+     * photo itself if the cached one was made from another photo file. An
+     * outdated thumbnail is shown as a preview in the meantime.
+     */
+    private class ThumbRequest implements Runnable {
 
-        Bitmap bitmap = BitmapFactory.decodeStream(is, null, opts);
-        if (bitmap == null)
-          return unchangedThumb;
+      public final int rawContactId;
+      public final long photoFileId;
 
-        result = new BitmapDrawable(getResources(), bitmap);
+      /**
+       * Views waiting for the thumbnail. Only touched on the UI thread.
+       */
+      public final ArrayList<ImageView> views = new ArrayList<ImageView>(1);
 
-        return result;
+      /**
+       * Thumbnail shown so far or <code>null</code> if none. Only touched on
+       * the UI thread.
+       */
+      public Drawable shown;
 
-      } catch (FileNotFoundException e) {
-        return null;
-      } catch (IOException e) {
-        return null;
-      } finally {
-        if (is != null)
-          try {
-            is.close();
-          } catch (IOException e) {}
-        if (fd != null)
-          try {
-            fd.close();
-          } catch (IOException e) {}
+      public Future<?> future;
+      public volatile boolean cancelled;
+
+      public ThumbRequest(int rawContactId, long photoFileId) {
+        this.rawContactId = rawContactId;
+        this.photoFileId = photoFileId;
       }
-    }
 
-    @Override
-    protected void onPostExecute(Drawable result) {
-      asyncTasks.remove(this);
-      if (result == null) {
-        putToThumbMemCache(rawContactId, defaultThumb);
-        removeDiskCache(rawContactId);
-      } else if (result != unchangedThumb) {
-        putToThumbMemCache(rawContactId, result);
-        writeDiskCache(rawContactId, ((BitmapDrawable) result).getBitmap());
+      public void cancel() {
+        cancelled = true;
+        future.cancel(false);
+      }
+
+      @Override
+      public void run() {
+        if (photoFileId < 0) {
+          thumbStore.remove(rawContactId);
+          deliver(this, defaultThumb, true);
+          return;
+        }
+        Bitmap cached = thumbStore.get(rawContactId);
+        if (cancelled)
+          return;
+        if (cached != null) {
+          boolean current = thumbStore.getPhotoFileId(rawContactId)
+              == photoFileId;
+          deliver(this, new BitmapDrawable(getResources(), cached), current);
+          if (current)
+            return;
+        }
+
+        Drawable thumb = readContactPhoto(rawContactId);
+        if (thumb == null) {
+          thumbStore.remove(rawContactId);
+          thumb = defaultThumb;
+        } else if (thumb != unchangedThumb) {
+          thumbStore.put(rawContactId, photoFileId,
+              ((BitmapDrawable) thumb).getBitmap());
+        }
+        deliver(this, thumb, true);
       }
-      ((ContactAdapter) contactList.getAdapter()).notifyDataSetChanged();
+    }
+  }
+
+  /**
+   * Decodes a thumbnail sized photo of the given raw contact.
+   * 
+   * @return The thumbnail, {@link #unchangedThumb} if the photo couldn't be
+   *         decoded or <code>null</code> if the contact has no photo.
+   */
+  private Drawable readContactPhoto(int rawContactId) {
+    AssetFileDescriptor fd = null;
+    InputStream is = null;
+    BitmapFactory.Options opts;
+
+    Uri rawContactPhotoUri = Uri.withAppendedPath(
+        ContentUris.withAppendedId(RawContacts.CONTENT_URI, rawContactId),
+        RawContacts.DisplayPhoto.CONTENT_DIRECTORY);
+    try {
+
+      // Get the bounds for later resampling
+
+      fd = getContentResolver().openAssetFileDescriptor(rawContactPhotoUri,
+          "r");
+      is = fd.createInputStream();
+      ImageInfo info = ImageInfo.read(is, false);
+      is.close();
+      fd.close();
+      if (info == null)
+        return unchangedThumb;
+
+      opts = new Options();
+      opts.inSampleSize = info.height / thumbSize;
+      opts.inSampleSize = opts.inSampleSize < 1 ? 1 : opts.inSampleSize;
+      fd = getContentResolver().openAssetFileDescriptor(rawContactPhotoUri,
+          "r");
+      is = fd.createInputStream();
+
+      Bitmap bitmap = BitmapFactory.decodeStream(is, null, opts);
+      if (bitmap == null)
+        return unchangedThumb;
+
+      return new BitmapDrawable(getResources(), bitmap);
+
+    } catch (FileNotFoundException e) {
+      return null;
+    } catch (IOException e) {
+      return null;
+    } finally {
+      if (is != null)
+        try {
+          is.close();
+        } catch (IOException e) {}
+      if (fd != null)
+        try {
+          fd.close();
+        } catch (IOException e) {}
     }
   }
 
@@ -697,6 +810,7 @@ public class AssignContactPhotoActivity extends Activity {
           return null;
 
         ArrayList<Contact> contacts = new ArrayList<Contact>();
+        SparseArray<Contact> byId = new SparseArray<Contact>();
         try {
           if (!cursor.moveToFirst())
             return contacts;
@@ -707,6 +821,7 @@ public class AssignContactPhotoActivity extends Activity {
             c.displayName = cursor.getString(cursor
                 .getColumnIndex(Data.DISPLAY_NAME));
             contacts.add(c);
+            byId.put(c.rawContactId, c);
             if (isCancelled())
               return null;
           } while (cursor.moveToNext());
@@ -714,6 +829,28 @@ public class AssignContactPhotoActivity extends Activity {
           cursor.close();
         }
 
+        // Photo file IDs tell the thumbnails on disk that are still current
+        // from those that have to be made again.
+
+        cursor = getContentResolver().query(contactsUri,
+            new String[] { Photo.RAW_CONTACT_ID, Photo.PHOTO_FILE_ID },
+            Photo.MIMETYPE + " = ? AND " + Photo.PHOTO_FILE_ID
+                + " IS NOT NULL", new String[] { Photo.CONTENT_ITEM_TYPE },
+            null);
+        if (cursor == null)
+          return null;
+        try {
+          int idCol = cursor.getColumnIndex(Photo.RAW_CONTACT_ID);
+          int fileIdCol = cursor.getColumnIndex(Photo.PHOTO_FILE_ID);
+          while (cursor.moveToNext()) {
+            Contact c = byId.get(cursor.getInt(idCol));
+            if (c != null)
+              c.photoFileId = cursor.getLong(fileIdCol);
+          }
+        } finally {
+          cursor.close();
+        }
+
         return contacts;
       } else {
         return null;
@@ -736,6 +873,11 @@ public class AssignContactPhotoActivity extends Activity {
   private static class Contact {
     public int rawContactId;
     public String displayName;
+
+    /**
+     * ID of the photo file of the contact or -1 if it has none.
+     */
+    public long photoFileId = -1;
   }
 
   private class ContactAdapter extends BaseAdapter {
@@ -775,25 +917,18 @@ public class AssignContactPhotoActivity extends Activity {
       boolean checked = contactList.isItemChecked(position);
       Contact c = items.get(position);
 
-      Drawable thumb = thumbMemCache.get(c.rawContactId);
-      if (thumb == null) {
-        asyncTasks.add((LoadThumbTask) new LoadThumbTask()
-            .execute(c.rawContactId));
-        Bitmap fromDisk = readDiskCache(c.rawContactId);
-        if (fromDisk != null)
-          putToThumbMemCache(c.rawContactId, new BitmapDrawable(getResources(),
-              fromDisk));
-        else
-          putToThumbMemCache(c.rawContactId, defaultThumb);
-      }
-      thumb = thumbMemCache.get(c.rawContactId);
-
       View topView = convertView != null ? convertView : getLayoutInflater()
           .inflate(R.layout.contact_row, null);
 
       ((TextView) topView.findViewById(R.id.name)).setText(c.displayName);
-      ((ImageView) topView.findViewById(R.id.photo))
-          .setBackgroundDrawable(thumb);
+      ImageView photo = (ImageView) topView.findViewById(R.id.photo);
+      Drawable thumb = getFromThumbMemCache(c.rawContactId);
+      if (thumb == null) {
+        thumbLoader.load(photo, c.rawContactId, c.photoFileId);
+      } else {
+        thumbLoader.unbind(photo);
+        photo.setBackgroundDrawable(thumb);
+      }
       topView.setBackgroundColor(checked ? selectedColor : unselectedColor);
       return topView;
     }
@@ -805,6 +940,7 @@ public class AssignContactPhotoActivity extends Activity {
     public static final int TYPE_DOWNLOAD = 0;
     public static final int TYPE_UPLOAD = 1;
     private static final int BATCH_SIZE = 50;
+    private static final int RESULT_FAILED = -1;
     private ProgressDialog dialog;
     private int type;
 
@@ -830,22 +966,25 @@ public class AssignContactPhotoActivity extends Activity {
     @Override
     protected Integer doInBackground(List<Contact>... arg0) {
       List<Contact> contacts = arg0[0];
-      ContentValues updateVals = new ContentValues();
-
-      if (type == TYPE_DOWNLOAD)
-        updateVals.put(RawContacts.SYNC4, SyncAdapter.OVERRIDE_TAG + "|");
-      else if (type == TYPE_UPLOAD)
-        updateVals.put(RawContacts.SYNC4, "|" + SyncAdapter.OVERRIDE_TAG);
+      SyncStateDatabase db = SyncStateDatabase
+          .getInstance(AssignContactPhotoActivity.this);
+      int pending = type == TYPE_DOWNLOAD ? SyncStateDatabase.PENDING_DOWNLOAD
+          : SyncStateDatabase.PENDING_UPLOAD;
 
       for (int i = 0; i < contacts.size(); i += BATCH_SIZE) {
-        StringBuffer inVals = new StringBuffer();
+        ArrayList<Integer> ids = new ArrayList<Integer>();
         int maxIndex = Math.min(BATCH_SIZE + i, contacts.size()) - i;
         for (int j = 0; j < maxIndex; j++)
-          inVals.append(contacts.get(i + j).rawContactId + ",");
-        inVals.deleteCharAt(inVals.length() - 1);
-        String selectionClause = RawContacts._ID + " IN (" + inVals + ")";
-        getContentResolver().update(RawContacts.CONTENT_URI, updateVals,
-            selectionClause, new String[] {});
+          ids.add(contacts.get(i + j).rawContactId);
+
+        // The sync process writes the same database and may hold it locked
+
+        try {
+          db.setPending(account, ids, pending);
+        } catch (SQLException e) {
+          Log.e(TAG, "Couldn't queue contacts: " + e.getMessage());
+          return RESULT_FAILED;
+        }
         if (isCancelled())
           return 0;
       }
@@ -861,6 +1000,12 @@ public class AssignContactPhotoActivity extends Activity {
     @Override
     protected void onPostExecute(Integer result) {
       dialog.dismiss();
+      if (result == RESULT_FAILED) {
+        Toast.makeText(AssignContactPhotoActivity.this,
+            getResources().getString(R.string.something_went_wrong),
+            Toast.LENGTH_LONG).show();
+        return;
+      }
       Toast
           .makeText(
               AssignContactPhotoActivity.this,
@@ -1029,7 +1174,6 @@ public class AssignContactPhotoActivity extends Activity {
     private static final String PHOTO_DIR = "/files/photos";
     private static final String CONTACT_PROVIDER = "com.android.providers.contacts";
     private static final int WAIT_TIME_DB = 5000;
-    private static final int WAIT_TIME_INT = 50;
     public static final int RESULT_SUCCESS = 0;
     public static final int RESULT_NO_ROOT = 1;
     public static final int RESULT_IO_ERROR = 2;
@@ -1050,11 +1194,11 @@ public class AssignContactPhotoActivity extends Activity {
     @Override
     protected Integer doInBackground(Void... params) {
 
-      byte[] buffer = new byte[4096];
-      int bytesRead;
       AssetFileDescriptor fdout = null;
       InputStream is = null;
       OutputStream os = null;
+      PhotoCommitWatcher watcher = new PhotoCommitWatcher(getContentResolver(),
+          pickedRawContact);
 
       try {
 
@@ -1079,6 +1223,7 @@ public class AssignContactPhotoActivity extends Activity {
 
         // Store the image using android API as to update its database
 
+        watcher.start();
         is = new FileInputStream(cropTemp);
 
         Uri rawContactPhotoUri = Uri.withAppendedPath(ContentUris
@@ -1088,13 +1233,9 @@ public class AssignContactPhotoActivity extends Activity {
             rawContactPhotoUri, "w");
         os = fdout.createOutputStream();
 
-        bytesRead = is.read(buffer);
-        while (bytesRead >= 0) {
-          os.write(buffer, 0, bytesRead);
-          bytesRead = is.read(buffer);
-          if (isCancelled())
-            return RESULT_CANCELLED;
-        }
+        Streams.copy(is, os);
+        if (isCancelled())
+          return RESULT_CANCELLED;
 
         os.close();
         fdout.close();
@@ -1102,38 +1243,10 @@ public class AssignContactPhotoActivity extends Activity {
 
         // Wait until its file ID is available
 
-        int fileId = -1;
-        Uri contactsUri = ContactsContract.Data.CONTENT_URI.buildUpon()
-            .appendQueryParameter(RawContacts.ACCOUNT_NAME, account)
-            .appendQueryParameter(RawContacts.ACCOUNT_TYPE, ACCOUNT_TYPE)
-            .build();
-
-        int retryTime = 0;
-        for (; retryTime < WAIT_TIME_DB; retryTime += WAIT_TIME_INT) {
-
-          Cursor cursor = getContentResolver().query(
-              contactsUri,
-              new String[] { Photo.PHOTO_FILE_ID,
-                  GroupMembership.RAW_CONTACT_ID },
-              GroupMembership.RAW_CONTACT_ID + " = ?",
-              new String[] { pickedRawContact + "" }, null);
-
-          try {
-            if (cursor.moveToFirst()) {
-
-              int colIndex = cursor.getColumnIndex(Photo.PHOTO_FILE_ID);
-              if (!cursor.isNull(colIndex)) {
-                fileId = cursor.getInt(colIndex);
-                break;
-              }
-            }
-          } finally {
-            cursor.close();
-          }
-
-          if (isCancelled())
-            return RESULT_CANCELLED;
-        }
+        long deadline = SystemClock.uptimeMillis() + WAIT_TIME_DB;
+        int fileId = watcher.awaitFileId(deadline);
+        if (isCancelled())
+          return RESULT_CANCELLED;
 
         if (fileId < 0) {
           Log.e(TAG, "File ID didn't show up in db after saving");
@@ -1142,41 +1255,38 @@ public class AssignContactPhotoActivity extends Activity {
 
         // Wait until the actual file is available
 
-        boolean fileAvailable = false;
-        for (; retryTime < WAIT_TIME_DB; retryTime += WAIT_TIME_INT) {
-          try {
-            fdout = getContentResolver().openAssetFileDescriptor(
-                rawContactPhotoUri, "r");
-            is = fdout.createInputStream();
-            is.close();
-            fdout.close();
-            fileAvailable = true;
-            break;
-          } catch (FileNotFoundException e) {} finally {
-            try {
-              is.close();
-            } catch (IOException e) {}
-            try {
-              fdout.close();
-            } catch (IOException e) {}
-          }
-
-          if (isCancelled())
-            return RESULT_CANCELLED;
-        }
-
-        if (!fileAvailable)
+        fdout = watcher.awaitPhotoFile(deadline);
+        if (isCancelled())
+          return RESULT_CANCELLED;
+        if (fdout == null)
           return RESULT_IO_ERROR;
+        fdout.close();
 
         // Atomically replace the image file
 
         if (!rootReplaceImage(cropTemp.getAbsolutePath(), fileId))
-          return RESULT_NO_ROOT;
+          return isCancelled() ? RESULT_CANCELLED : RESULT_NO_ROOT;
+
+        // A sync may have hashed the photo the provider stored before it was
+        // replaced, so have the next sync upload it regardless.
+
+        try {
+          SyncStateDatabase.getInstance(AssignContactPhotoActivity.this)
+              .setPending(account,
+                  Collections.singletonList(pickedRawContact),
+                  SyncStateDatabase.PENDING_UPLOAD);
+        } catch (SQLException e) {
+          Log.e(TAG, "Couldn't queue photo for upload: " + e.getMessage());
+          return RESULT_IO_ERROR;
+        }
 
         return RESULT_SUCCESS;
 
       } catch (InterruptedException e) {
-        return RESULT_IO_ERROR;
+
+        // Waits for the provider are cut short by cancel(true)
+
+        return isCancelled() ? RESULT_CANCELLED : RESULT_IO_ERROR;
       } catch (IOException e) {
         e.printStackTrace();
         return RESULT_IO_ERROR;
@@ -1193,6 +1303,11 @@ public class AssignContactPhotoActivity extends Activity {
           if (fdout != null)
             fdout.close();
         } catch (IOException e) {}
+        watcher.stop();
+
+        // Don't leave a root shell running in the UI process
+
+        RootShell.getInstance().close();
       }
     }
 
@@ -1212,24 +1327,26 @@ public class AssignContactPhotoActivity extends Activity {
 
       // Find the PID of contact provider
 
-      String killCommand = "";
+      String killCommand = null;
       ActivityManager am = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
       for (RunningAppProcessInfo proc : am.getRunningAppProcesses())
         for (String p : proc.pkgList)
           if (CONTACT_PROVIDER.equals(p)) {
-            killCommand = "kill " + proc.pid + "\n";
+            killCommand = "kill " + proc.pid;
             break;
           }
 
       // Modify the permission of our tmp file and move it over to the correct
       // location + restart contact storage service
 
-      if (!Util.runRoot("chown " + uid + ":" + uid + " " + src + "\nchmod 600 "
-          + src + "\nmv " + src + " " + dstDir + "/" + fileId + "\n"
-          + killCommand))
-        return false;
+      RootShell.Script script = new RootShell.Script()
+          .add("chown " + uid + ":" + uid + " " + src)
+          .add("chmod 600 " + src)
+          .add("mv " + src + " " + dstDir + "/" + fileId);
+      if (killCommand != null)
+        script.add(killCommand);
 
-      return true;
+      return script.runAll();
 
     }
 
@@ -1252,7 +1369,7 @@ public class AssignContactPhotoActivity extends Activity {
             Toast.LENGTH_LONG).show();
         break;
       }
-      removeDiskCache(pickedRawContact);
+      thumbStore.remove(pickedRawContact);
       thumbMemCache.remove(pickedRawContact);
     }
 
@@ -1264,7 +1381,7 @@ public class AssignContactPhotoActivity extends Activity {
       Toast.makeText(AssignContactPhotoActivity.this,
           getResources().getString(R.string.saving_cancelled),
           Toast.LENGTH_LONG).show();
-      removeDiskCache(pickedRawContact);
+      thumbStore.remove(pickedRawContact);
       thumbMemCache.remove(pickedRawContact);
     }
 
@@ -22,7 +22,6 @@ import android.graphics.Paint;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.graphics.RectF;
-import android.media.ExifInterface;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
@@ -187,8 +186,6 @@ public class CropPhotoActivity extends Activity {
       AssetFileDescriptor fdin = null, fdout = null;
       InputStream is = null;
       OutputStream os = null;
-      byte[] buffer = new byte[4096];
-      int bytesRead;
       Bitmap interm = null;
 
       try {
@@ -203,13 +200,9 @@ public class CropPhotoActivity extends Activity {
         fdout = getContentResolver().openAssetFileDescriptor(dst, "w");
         os = fdout.createOutputStream();
 
-        bytesRead = is.read(buffer);
-        while (bytesRead >= 0) {
-          if (isCancelled())
-            return FAILED;
-          os.write(buffer, 0, bytesRead);
-          bytesRead = is.read(buffer);
-        }
+        Streams.copy(is, os);
+        if (isCancelled())
+          return FAILED;
 
         is.close();
         os.close();
@@ -218,34 +211,16 @@ public class CropPhotoActivity extends Activity {
 
         // Retrieve primary information about the image
 
-        Options opts = new Options();
-        opts.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(inCachePath.getAbsolutePath(), opts);
-        if (opts.outWidth < 0 || opts.outHeight < 0)
-          return FAILED;
-        orgWidth = opts.outWidth;
-        orgHeight = opts.outHeight;
-        mimeType = opts.outMimeType;
-        if (!"image/jpeg".equals(mimeType) && !"image/png".equals(mimeType))
+        ImageInfo info = ImageInfo.read(inCachePath, true);
+        if (info == null || !info.complete)
           return FAILED;
+        orgWidth = info.width;
+        orgHeight = info.height;
+        mimeType = info.mimeType;
 
-        // For JPEG files, read the orientation details
-
-        orientation = 0;
-        if ("image/jpeg".equals(opts.outMimeType)) {
-          ExifInterface exif = new ExifInterface(inCachePath.getAbsolutePath());
-          switch (exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, 1)) {
-          case 3:
-            orientation = 180;
-            break;
-          case 6:
-            orientation = 90;
-            break;
-          case 8:
-            orientation = 270;
-            break;
-          }
-        }
+        // For JPEG files, this includes the orientation details
+
+        orientation = info.orientation;
 
         // Create a thumbnail for drawing on the screen
 
@@ -267,7 +242,7 @@ public class CropPhotoActivity extends Activity {
         int thumbWidth = (int) Math.round(scale * orgWidth);
         int thumbHeight = (int) Math.round(scale * orgHeight);
 
-        opts.inJustDecodeBounds = false;
+        Options opts = new Options();
         opts.inSampleSize = orgWidth / thumbWidth;
         interm = BitmapFactory.decodeFile(inCachePath.getAbsolutePath(), opts);
         if (isCancelled())
@@ -451,12 +426,7 @@ public class CropPhotoActivity extends Activity {
           is = new FileInputStream(inCachePath);
           os = fdout.createOutputStream();
 
-          byte[] buffer = new byte[4096];
-          int bytesRead = is.read(buffer);
-          while (bytesRead >= 0) {
-            os.write(buffer, 0, bytesRead);
-            bytesRead = is.read(buffer);
-          }
+          Streams.copy(is, os);
 
           is.close();
           os.close();
@@ -0,0 +1,322 @@
+/**
+ * ImageInfo.java - JPEG/PNG structure inspector.
+ *
+ * Copyright (C) 2012 Mansour <mansour@oxplot.com>
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.oxplot.contactphotosync;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Dimensions, orientation and integrity of a JPEG or PNG image, found by
+ * walking the markers/chunks of the file without decoding any pixels.
+ */
+class ImageInfo {
+
+  public static final String MIME_JPEG = "image/jpeg";
+  public static final String MIME_PNG = "image/png";
+
+  private static final byte[] PNG_SIGNATURE = new byte[] { (byte) 0x89, 'P',
+      'N', 'G', '\r', '\n', 0x1a, '\n' };
+  private static final int PNG_IHDR = 0x49484452;
+  private static final int PNG_IDAT = 0x49444154;
+  private static final int PNG_IEND = 0x49454e44;
+
+  private static final int EXIF_ORIENTATION = 0x0112;
+
+  public String mimeType;
+  public int width = -1;
+  public int height = -1;
+
+  /**
+   * Clockwise rotation (in degrees) needed to display the image upright, as
+   * specified by its EXIF orientation.
+   */
+  public int orientation;
+
+  /**
+   * <code>true</code> if the whole image was walked and found to be
+   * structurally complete, e.g. has image data and ends with an EOI marker
+   * (JPEG) or IEND chunk with matching CRCs (PNG).
+   */
+  public boolean complete;
+
+  /**
+   * @see #read(InputStream, boolean)
+   */
+  public static ImageInfo read(File file, boolean verify) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      return read(in, verify);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Inspects the image in <code>in</code>. If <code>verify</code> is
+   * <code>false</code>, reading stops as soon as the dimensions are known,
+   * otherwise the whole stream is walked to determine {@link #complete}.
+   *
+   * @return Image info or <code>null</code> if the stream doesn't start as a
+   *         JPEG or PNG image or its dimensions couldn't be found.
+   */
+  public static ImageInfo read(InputStream in, boolean verify)
+      throws IOException {
+    in = new BufferedInputStream(in);
+    ImageInfo info = new ImageInfo();
+    try {
+      int b0 = in.read();
+      int b1 = in.read();
+      if (b0 == 0xff && b1 == 0xd8) {
+        info.mimeType = MIME_JPEG;
+        info.readJpeg(in, verify);
+      } else if (b0 == (PNG_SIGNATURE[0] & 0xff) && b1 == PNG_SIGNATURE[1]) {
+        for (int i = 2; i < PNG_SIGNATURE.length; i++)
+          if (in.read() != PNG_SIGNATURE[i])
+            return null;
+        info.mimeType = MIME_PNG;
+        info.readPng(in, verify);
+      } else {
+        return null;
+      }
+    } catch (EOFException e) {
+      // Truncated image; whatever was found so far stands.
+    }
+    return info.width > 0 && info.height > 0 ? info : null;
+  }
+
+  private void readJpeg(InputStream in, boolean verify) throws IOException {
+    boolean scanned = false;
+    int marker = nextMarker(in);
+    for (;;) {
+      if (marker == 0xd9) { // EOI
+        complete = scanned && width > 0;
+        return;
+      }
+      if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd7)) {
+        marker = nextMarker(in);
+        continue;
+      }
+
+      int length = readShort(in, false) - 2;
+      if (length < 0)
+        return;
+
+      if (isSof(marker)) {
+        if (length < 5)
+          return;
+        in.read(); // Sample precision
+        height = readShort(in, false);
+        width = readShort(in, false);
+        skipFully(in, length - 5);
+        if (!verify)
+          return;
+      } else if (marker == 0xe1 && width < 0) { // APP1
+        byte[] data = new byte[length];
+        readFully(in, data);
+        readExif(data);
+      } else {
+        skipFully(in, length);
+      }
+
+      if (marker == 0xda) { // SOS
+        if (width < 0)
+          return;
+        marker = skipScan(in);
+        scanned = true;
+      } else {
+        marker = nextMarker(in);
+      }
+    }
+  }
+
+  private static boolean isSof(int marker) {
+    return marker >= 0xc0 && marker <= 0xcf && marker != 0xc4
+        && marker != 0xc8 && marker != 0xcc;
+  }
+
+  private static int nextMarker(InputStream in) throws IOException {
+    int b = readByte(in);
+    if (b != 0xff)
+      throw new EOFException("Expected marker");
+    while (b == 0xff)
+      b = readByte(in);
+    return b;
+  }
+
+  /**
+   * Skips entropy coded data following an SOS segment.
+   *
+   * @return The marker ending the scan.
+   */
+  private static int skipScan(InputStream in) throws IOException {
+    for (;;) {
+      int b = readByte(in);
+      if (b != 0xff)
+        continue;
+      while (b == 0xff)
+        b = readByte(in);
+      if (b != 0 && (b < 0xd0 || b > 0xd7))
+        return b;
+    }
+  }
+
+  private void readExif(byte[] data) {
+    if (data.length < 14 || data[0] != 'E' || data[1] != 'x'
+        || data[2] != 'i' || data[3] != 'f')
+      return;
+    int tiff = 6;
+    boolean le = data[tiff] == 'I';
+    int ifd = tiff + getInt(data, tiff + 4, le);
+    if (ifd < tiff || ifd + 2 > data.length)
+      return;
+    int count = getShort(data, ifd, le);
+    for (int i = 0; i < count; i++) {
+      int entry = ifd + 2 + i * 12;
+      if (entry + 12 > data.length)
+        return;
+      if (getShort(data, entry, le) == EXIF_ORIENTATION) {
+        switch (getShort(data, entry + 8, le)) {
+        case 3:
+          orientation = 180;
+          break;
+        case 6:
+          orientation = 90;
+          break;
+        case 8:
+          orientation = 270;
+          break;
+        }
+        return;
+      }
+    }
+  }
+
+  private void readPng(InputStream in, boolean verify) throws IOException {
+    CRC32 crc = new CRC32();
+    byte[] buffer = new byte[4096];
+    boolean hasData = false;
+
+    for (;;) {
+      int length = readInt(in);
+      int type = readInt(in);
+      if (length < 0)
+        return;
+
+      if (type == PNG_IHDR) {
+        if (length < 8)
+          return;
+        width = readInt(in);
+        height = readInt(in);
+        if (!verify)
+          return;
+        crc.reset();
+        updateCrc(crc, type);
+        updateCrc(crc, width);
+        updateCrc(crc, height);
+        length -= 8;
+      } else {
+        crc.reset();
+        updateCrc(crc, type);
+      }
+
+      while (length > 0) {
+        int bytesRead = in.read(buffer, 0, Math.min(length, buffer.length));
+        if (bytesRead < 0)
+          throw new EOFException();
+        crc.update(buffer, 0, bytesRead);
+        length -= bytesRead;
+      }
+      if ((int) crc.getValue() != readInt(in))
+        return;
+
+      if (type == PNG_IDAT) {
+        hasData = true;
+      } else if (type == PNG_IEND) {
+        complete = hasData && width > 0;
+        return;
+      }
+    }
+  }
+
+  private static void updateCrc(CRC32 crc, int value) {
+    crc.update(value >>> 24);
+    crc.update(value >>> 16);
+    crc.update(value >>> 8);
+    crc.update(value);
+  }
+
+  private static int readByte(InputStream in) throws IOException {
+    int b = in.read();
+    if (b < 0)
+      throw new EOFException();
+    return b;
+  }
+
+  private static int readShort(InputStream in, boolean le) throws IOException {
+    int b0 = readByte(in);
+    int b1 = readByte(in);
+    return le ? (b1 << 8) | b0 : (b0 << 8) | b1;
+  }
+
+  private static int readInt(InputStream in) throws IOException {
+    return (readShort(in, false) << 16) | readShort(in, false);
+  }
+
+  private static void readFully(InputStream in, byte[] data)
+      throws IOException {
+    int offset = 0;
+    while (offset < data.length) {
+      int bytesRead = in.read(data, offset, data.length - offset);
+      if (bytesRead < 0)
+        throw new EOFException();
+      offset += bytesRead;
+    }
+  }
+
+  private static void skipFully(InputStream in, long count) throws IOException {
+    while (count > 0) {
+      long skipped = in.skip(count);
+      if (skipped <= 0) {
+        readByte(in);
+        skipped = 1;
+      }
+      count -= skipped;
+    }
+  }
+
+  private static int getShort(byte[] data, int offset, boolean le) {
+    int b0 = data[offset] & 0xff;
+    int b1 = data[offset + 1] & 0xff;
+    return le ? (b1 << 8) | b0 : (b0 << 8) | b1;
+  }
+
+  private static int getInt(byte[] data, int offset, boolean le) {
+    int s0 = getShort(data, offset, le);
+    int s1 = getShort(data, offset + 2, le);
+    return le ? (s1 << 16) | s0 : (s0 << 16) | s1;
+  }
+}
@@ -0,0 +1,207 @@
+/**
+ * PhotoBufferPool.java - Reusable in-memory buffers for photos.
+ *
+ * Copyright (C) 2012 Mansour <mansour@oxplot.com>
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.oxplot.contactphotosync;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedList;
+
+/**
+ * Hands out {@link PhotoBuffer}s which hold photo bytes in memory as long as
+ * they fit under a threshold, and spill over to a temp file otherwise. The
+ * byte arrays backing the buffers start small and grow with the photo. They
+ * are reused once released, with at most a fixed number of bytes worth of
+ * them kept around. Buffers may be obtained and released from any thread.
+ */
+class PhotoBufferPool {
+
+  private static final int INITIAL_ARRAY_SIZE = 32 * 1024;
+
+  private final File spillDir;
+  private final int threshold;
+  private final int maxPooledBytes;
+  private final LinkedList<byte[]> pool = new LinkedList<byte[]>();
+  private int pooledBytes;
+
+  /**
+   * @param spillDir Directory to create temp files in for photos larger than
+   *          <code>threshold</code> bytes.
+   * @param maxPooledBytes Maximum total size of the arrays kept for reuse.
+   */
+  public PhotoBufferPool(File spillDir, int threshold, int maxPooledBytes) {
+    this.spillDir = spillDir;
+    this.threshold = threshold;
+    this.maxPooledBytes = maxPooledBytes;
+  }
+
+  /**
+   * @return An empty buffer. It must be {@link PhotoBuffer#release()}d once
+   *         done with.
+   */
+  public PhotoBuffer obtain() {
+    return new PhotoBuffer();
+  }
+
+  /**
+   * @return The smallest pooled array of at least <code>minLength</code>
+   *         bytes, or a new one if there's none.
+   */
+  private synchronized byte[] takeArray(int minLength) {
+    byte[] best = null;
+    for (byte[] array : pool)
+      if (array.length >= minLength
+          && (best == null || array.length < best.length))
+        best = array;
+    if (best == null)
+      return new byte[minLength];
+    pool.remove(best);
+    pooledBytes -= best.length;
+    return best;
+  }
+
+  private synchronized void giveArray(byte[] array) {
+    if (pooledBytes + array.length > maxPooledBytes)
+      return;
+    pool.add(array);
+    pooledBytes += array.length;
+  }
+
+  /**
+   * Photo bytes written once and then read any number of times.
+   */
+  public class PhotoBuffer extends OutputStream {
+
+    private byte[] array;
+    private int count;
+    private File file;
+    private OutputStream fileOut;
+
+    private PhotoBuffer() {}
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length)
+        throws IOException {
+      if (file == null && count + length > threshold)
+        spill();
+      if (file != null) {
+        fileOut.write(buffer, offset, length);
+      } else {
+        if (array == null || count + length > array.length)
+          grow(count + length);
+        System.arraycopy(buffer, offset, array, count, length);
+      }
+      count += length;
+    }
+
+    /**
+     * Ends writing to the buffer.
+     */
+    @Override
+    public void close() throws IOException {
+      if (fileOut != null) {
+        fileOut.close();
+        fileOut = null;
+      }
+    }
+
+    public long length() {
+      return count;
+    }
+
+    /**
+     * @return A new stream over the bytes written to this buffer.
+     */
+    public InputStream openInputStream() throws IOException {
+      if (file != null)
+        return new FileInputStream(file);
+      return new ByteArrayInputStream(array == null ? new byte[0] : array, 0,
+          count);
+    }
+
+    /**
+     * Moves the content of this buffer to a file, if not already in one.
+     * Writing to the buffer is ended.
+     *
+     * @return The file holding the bytes of this buffer. It remains owned by
+     *         the buffer and is deleted on {@link #release()}.
+     */
+    public File toFile() throws IOException {
+      if (file == null)
+        spill();
+      close();
+      return file;
+    }
+
+    /**
+     * Returns the memory of this buffer to the pool and deletes its file, if
+     * any. The buffer must not be used afterwards.
+     */
+    public void release() {
+      try {
+        close();
+      } catch (IOException e) {}
+      if (file != null)
+        file.delete();
+      if (array != null)
+        giveArray(array);
+      array = null;
+      file = null;
+      count = 0;
+    }
+
+    /**
+     * Moves the content of this buffer to an array of at least
+     * <code>minLength</code> bytes, doubling the size of the current one.
+     */
+    private void grow(int minLength) {
+      int length = array == null ? INITIAL_ARRAY_SIZE : array.length * 2;
+      byte[] newArray = takeArray(Math.min(threshold,
+          Math.max(length, minLength)));
+      if (array != null) {
+        System.arraycopy(array, 0, newArray, 0, count);
+        giveArray(array);
+      }
+      array = newArray;
+    }
+
+    private void spill() throws IOException {
+      File spillFile = File.createTempFile("photobuf", "", spillDir);
+      fileOut = new FileOutputStream(spillFile);
+      file = spillFile;
+      if (array != null) {
+        fileOut.write(array, 0, count);
+        giveArray(array);
+        array = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,165 @@
+/**
+ * PhotoCommitWatcher.java - Waits for a contact photo to be committed.
+ *
+ * Copyright (C) 2012 Mansour <mansour@oxplot.com>
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.oxplot.contactphotosync;
+
+import java.io.FileNotFoundException;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.res.AssetFileDescriptor;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.ContactsContract.CommonDataKinds.Photo;
+import android.provider.ContactsContract.RawContacts;
+
+/**
+ * Waits for the contacts provider to commit a display photo written to a raw
+ * contact. Rather than polling the provider, the watcher observes the data of
+ * the raw contact and only checks again when the provider reports a change.
+ * <p>
+ * The watcher must be started before the photo is written so that no
+ * notification is missed, and stopped once done with. Waits end with an
+ * {@link InterruptedException} as soon as the waiting thread is interrupted,
+ * as a task cancelled with <code>cancel(true)</code> is.
+ */
+class PhotoCommitWatcher {
+
+  /**
+   * The provider doesn't notify once the photo file becomes readable, so it
+   * is checked for at least this often (ms).
+   */
+  private static final long FILE_RECHECK_INTERVAL = 100;
+
+  private final ContentResolver resolver;
+  private final Uri dataUri;
+  private final Uri photoUri;
+  private final Object lock = new Object();
+  private boolean changed;
+
+  private final ContentObserver observer = new ContentObserver(null) {
+    @Override
+    public void onChange(boolean selfChange) {
+      synchronized (lock) {
+        changed = true;
+        lock.notifyAll();
+      }
+    }
+  };
+
+  public PhotoCommitWatcher(ContentResolver resolver, int rawContactId) {
+    this.resolver = resolver;
+    Uri rawContactUri = ContentUris.withAppendedId(RawContacts.CONTENT_URI,
+        rawContactId);
+    dataUri = Uri.withAppendedPath(rawContactUri,
+        RawContacts.Data.CONTENT_DIRECTORY);
+    photoUri = Uri.withAppendedPath(rawContactUri,
+        RawContacts.DisplayPhoto.CONTENT_DIRECTORY);
+  }
+
+  public void start() {
+    resolver.registerContentObserver(dataUri, true, observer);
+  }
+
+  public void stop() {
+    resolver.unregisterContentObserver(observer);
+  }
+
+  /**
+   * Waits until the photo row of the raw contact has a file ID.
+   *
+   * @param deadline Time, as in {@link SystemClock#uptimeMillis()}, after
+   *          which to give up.
+   * @return File ID of the photo or -1 if it didn't show up before
+   *         <code>deadline</code>.
+   */
+  public int awaitFileId(long deadline) throws InterruptedException {
+    for (;;) {
+      clearChanged();
+      Cursor cursor = resolver.query(dataUri,
+          new String[] { Photo.PHOTO_FILE_ID }, Photo.MIMETYPE + " = ?",
+          new String[] { Photo.CONTENT_ITEM_TYPE }, null);
+      if (cursor != null)
+        try {
+          if (cursor.moveToFirst() && !cursor.isNull(0))
+            return cursor.getInt(0);
+        } finally {
+          cursor.close();
+        }
+      if (!awaitChange(deadline, Long.MAX_VALUE))
+        return -1;
+    }
+  }
+
+  /**
+   * Waits until the display photo of the raw contact can be read.
+   *
+   * @param deadline Time, as in {@link SystemClock#uptimeMillis()}, after
+   *          which to give up.
+   * @return Open descriptor of the photo or <code>null</code> if it couldn't
+   *         be opened before <code>deadline</code>.
+   */
+  public AssetFileDescriptor awaitPhotoFile(long deadline)
+      throws InterruptedException {
+    for (;;) {
+      clearChanged();
+      try {
+        return resolver.openAssetFileDescriptor(photoUri, "r");
+      } catch (FileNotFoundException e) {}
+      if (!awaitChange(deadline, FILE_RECHECK_INTERVAL))
+        return null;
+    }
+  }
+
+  private void clearChanged() {
+    synchronized (lock) {
+      changed = false;
+    }
+  }
+
+  /**
+   * Blocks until a change is reported, <code>interval</code> ms have passed
+   * or <code>deadline</code> is reached, whichever comes first.
+   *
+   * @return <code>false</code> if <code>deadline</code> has been reached.
+   */
+  private boolean awaitChange(long deadline, long interval)
+      throws InterruptedException {
+
+    // An interrupt during a query to the provider is only noticed here
+
+    if (Thread.interrupted())
+      throw new InterruptedException();
+    long now = SystemClock.uptimeMillis();
+    if (now >= deadline)
+      return false;
+    long until = now + Math.min(interval, deadline - now);
+    synchronized (lock) {
+      while (!changed && now < until) {
+        lock.wait(until - now);
+        now = SystemClock.uptimeMillis();
+      }
+    }
+    return true;
+  }
+}
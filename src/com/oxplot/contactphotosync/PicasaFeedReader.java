@@ -0,0 +1,167 @@
+/**
+ * PicasaFeedReader.java - Streaming reader for Picasaweb Atom feeds.
+ *
+ * Copyright (C) 2012 Mansour <mansour@oxplot.com>
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.oxplot.contactphotosync;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.util.Xml;
+
+/**
+ * Pulls <code>&lt;entry&gt;</code> elements out of a Picasaweb feed (or a
+ * single entry document) one at a time, without ever holding more than the
+ * entry being parsed in memory.
+ */
+class PicasaFeedReader {
+
+  private static final String NS_ATOM = "http://www.w3.org/2005/Atom";
+  private static final String NS_GPHOTO = "http://schemas.google.com/photos/2007";
+  private static final String NS_EXIF = "http://schemas.google.com/photos/exif/2007";
+
+  /**
+   * Fields of a single feed entry. Fields not present in the entry are left
+   * as empty strings (or 0 for numbers).
+   */
+  static class Entry {
+    String id = "";
+    String title = "";
+    String summary = "";
+    String access = "";
+    String updated = "";
+    String uniqueId = "";
+    String mimeType = "";
+    String contentUrl = "";
+    String editUrl = "";
+    String editMediaUrl = "";
+    int width;
+    int height;
+  }
+
+  interface EntryHandler {
+    void onEntry(Entry entry) throws IOException;
+  }
+
+  /**
+   * Parses <code>in</code> calling <code>handler</code> for every entry as
+   * soon as its closing tag is read.
+   *
+   * @return Number of entries read.
+   */
+  static int read(InputStream in, EntryHandler handler) throws IOException {
+    int count = 0;
+    try {
+      XmlPullParser parser = Xml.newPullParser();
+      parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+      parser.setInput(in, "UTF-8");
+
+      Entry entry = null;
+      int entryDepth = 0;
+
+      for (int event = parser.next(); event != XmlPullParser.END_DOCUMENT; event = parser
+          .next()) {
+
+        if (event == XmlPullParser.END_TAG) {
+          if (entry != null && parser.getDepth() == entryDepth) {
+            handler.onEntry(entry);
+            entry = null;
+            count++;
+          }
+          continue;
+        }
+
+        if (event != XmlPullParser.START_TAG)
+          continue;
+
+        String ns = parser.getNamespace();
+        String name = parser.getName();
+
+        if (entry == null) {
+          if (NS_ATOM.equals(ns) && "entry".equals(name)) {
+            entry = new Entry();
+            entryDepth = parser.getDepth();
+          }
+          continue;
+        }
+
+        // Only direct children of entry are of interest, with the exception of
+        // exif tags which are wrapped in <exif:tags>.
+
+        if (NS_EXIF.equals(ns)) {
+          if ("imageUniqueID".equals(name))
+            entry.uniqueId = parser.nextText();
+          continue;
+        }
+
+        if (parser.getDepth() != entryDepth + 1)
+          continue;
+
+        if (NS_ATOM.equals(ns)) {
+          if ("title".equals(name)) {
+            entry.title = parser.nextText();
+          } else if ("summary".equals(name)) {
+            entry.summary = parser.nextText();
+          } else if ("updated".equals(name)) {
+            entry.updated = parser.nextText();
+          } else if ("content".equals(name)) {
+            entry.mimeType = attr(parser, "type");
+            entry.contentUrl = attr(parser, "src");
+          } else if ("link".equals(name)) {
+            String rel = parser.getAttributeValue(null, "rel");
+            if ("edit".equals(rel))
+              entry.editUrl = attr(parser, "href");
+            else if ("edit-media".equals(rel))
+              entry.editMediaUrl = attr(parser, "href");
+          }
+        } else if (NS_GPHOTO.equals(ns)) {
+          if ("id".equals(name))
+            entry.id = parser.nextText();
+          else if ("access".equals(name))
+            entry.access = parser.nextText();
+          else if ("width".equals(name))
+            entry.width = toInt(parser.nextText());
+          else if ("height".equals(name))
+            entry.height = toInt(parser.nextText());
+        }
+      }
+    } catch (XmlPullParserException e) {
+      throw new IOException(e);
+    }
+    return count;
+  }
+
+  private static String attr(XmlPullParser parser, String name) {
+    String value = parser.getAttributeValue(null, name);
+    return value == null ? "" : value;
+  }
+
+  private static int toInt(String text) {
+    try {
+      return Integer.parseInt(text.trim());
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+}
@@ -0,0 +1,236 @@
+/**
+ * PicasaTransport.java - HTTP transport with persistent connections.
+ *
+ * Copyright (C) 2012 Mansour <mansour@oxplot.com>
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.oxplot.contactphotosync;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Performs HTTP requests such that the underlying connections can be kept
+ * alive and reused by later requests to the same host. The platform's
+ * connection pool only takes a connection back once the response body has
+ * been read to the end and closed, which is what this class makes sure of no
+ * matter how the response is consumed (or not) by the caller.
+ * <p>
+ * All HTTPS sockets are created through a single socket factory owned by the
+ * transport, which both keeps the pooled connections of separate transports
+ * apart and lets us count how many requests did not need a new connection.
+ */
+class PicasaTransport {
+
+  /**
+   * Maximum number of idle connections the platform keeps per host.
+   */
+  private static final int MAX_IDLE_CONNECTIONS = 4;
+
+  /**
+   * Sets up the platform's connection pool, whose settings are read from
+   * system properties and so apply to the whole process. Meant to be called
+   * once, before any request, by the component owning the process.
+   */
+  public static void configureConnectionPool() {
+    System.setProperty("http.keepAlive", "true");
+    System.setProperty("http.maxConnections", "" + MAX_IDLE_CONNECTIONS);
+  }
+
+  /**
+   * Consumes the body of a response as it is being received.
+   */
+  interface ResponseReader {
+    void read(HttpURLConnection conn, InputStream in) throws IOException;
+  }
+
+  private final CountingSocketFactory socketFactory = new CountingSocketFactory(
+      HttpsURLConnection.getDefaultSSLSocketFactory());
+  private int secureRequests;
+
+  /**
+   * Performs a request and hands its response body (or error body) over to
+   * <code>reader</code> if not <code>null</code>. Whatever is left unread of
+   * the response is drained before returning. The request body, if any, is
+   * streamed straight to the socket: with a fixed length when
+   * <code>dataLength</code> is known, chunked otherwise.
+   *
+   * @return HTTP status code of the response.
+   */
+  public int execute(String method, String url, Map<String, String> headers,
+      InputStream dataIn, long dataLength, ResponseReader reader)
+      throws IOException {
+
+    HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+    if (conn instanceof HttpsURLConnection) {
+      ((HttpsURLConnection) conn).setSSLSocketFactory(socketFactory);
+      synchronized (this) {
+        secureRequests++;
+      }
+    }
+    conn.setRequestMethod(method);
+    if (headers != null)
+      for (String k : headers.keySet())
+        conn.setRequestProperty(k, headers.get(k));
+
+    // Send request body
+
+    if (dataIn != null) {
+      conn.setDoOutput(true);
+      if (dataLength >= 0 && dataLength <= Integer.MAX_VALUE)
+        conn.setFixedLengthStreamingMode((int) dataLength);
+      else
+        conn.setChunkedStreamingMode(0);
+      OutputStream outStream = conn.getOutputStream();
+      try {
+        Streams.copy(dataIn, outStream);
+        outStream.flush();
+      } finally {
+        outStream.close();
+      }
+    }
+
+    int responseCode = conn.getResponseCode();
+
+    // Get response
+
+    InputStream inStream;
+    try {
+      inStream = conn.getInputStream();
+    } catch (IOException e) {
+      inStream = conn.getErrorStream();
+    }
+    if (inStream == null)
+      return responseCode;
+
+    try {
+      inStream = new BufferedInputStream(inStream);
+      if (reader != null)
+        reader.read(conn, inStream);
+      Streams.copy(inStream, null);
+    } finally {
+      inStream.close();
+    }
+
+    return responseCode;
+  }
+
+  /**
+   * @return Number of HTTPS requests made through this transport.
+   */
+  public synchronized int getRequestCount() {
+    return secureRequests;
+  }
+
+  /**
+   * @return Number of HTTPS connections opened by this transport.
+   */
+  public int getConnectionCount() {
+    return socketFactory.getCount();
+  }
+
+  /**
+   * @return Fraction of HTTPS requests that were served over an already open
+   *         connection.
+   */
+  public float getReuseRate() {
+    int requests = getRequestCount();
+    if (requests == 0)
+      return 0;
+    return (float) Math.max(0, requests - getConnectionCount()) / requests;
+  }
+
+  @Override
+  public String toString() {
+    return getRequestCount() + " requests over " + getConnectionCount()
+        + " connections (" + Math.round(getReuseRate() * 100) + "% reused)";
+  }
+
+  private static class CountingSocketFactory extends SSLSocketFactory {
+
+    private final SSLSocketFactory delegate;
+    private int count;
+
+    public CountingSocketFactory(SSLSocketFactory delegate) {
+      this.delegate = delegate;
+    }
+
+    public synchronized int getCount() {
+      return count;
+    }
+
+    private synchronized Socket counted(Socket socket) {
+      count++;
+      return socket;
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+      return delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+      return delegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket(Socket s, String host, int port,
+        boolean autoClose) throws IOException {
+      return counted(delegate.createSocket(s, host, port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+      return counted(delegate.createSocket());
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+      return counted(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost,
+        int localPort) throws IOException {
+      return counted(delegate.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+      return counted(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port,
+        InetAddress localAddress, int localPort) throws IOException {
+      return counted(delegate.createSocket(address, port, localAddress,
+          localPort));
+    }
+  }
+}
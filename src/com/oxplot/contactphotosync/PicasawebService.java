@@ -23,10 +23,6 @@ package com.oxplot.contactphotosync;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -34,33 +30,45 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.URLEncoder;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import android.content.Context;
 import android.content.res.Resources.NotFoundException;
+import android.util.Log;
+
+import com.oxplot.contactphotosync.PicasaTransport.ResponseReader;
 
 public class PicasawebService {
 
   public static final String PW_SERVICE_NAME = "lh2";
-  private static final String PHOTO_FIELD_PARAM = "&fields=entry(title,summary,gphoto:id,gphoto:width,gphoto:height,content,link[@rel='edit'],link[@rel='edit-media'],exif:tags(exif:imageUniqueID))";
+  private static final String TAG = "PicasawebService";
+  private static final int FEED_PAGE_SIZE = 500;
+  private static final int FEED_PAGE_ATTEMPTS = 3;
+  private static final String PHOTO_FIELD_PARAM = "&fields=entry(title,summary,updated,gphoto:id,gphoto:width,gphoto:height,content,link[@rel='edit'],link[@rel='edit-media'],exif:tags(exif:imageUniqueID))";
 
   public String authToken;
 
+  private final PicasaTransport transport = new PicasaTransport();
+
   private String albumXML;
   private String albumUpdateXML;
   private String photoXML;
   private String photoUpdateXML;
 
+  private static final Pattern XML_SPECIAL_PAT = Pattern.compile("[&\"'<>]");
+
   private static String encodeXML(String text) {
-    Matcher m = Pattern.compile("[&\"'<>]").matcher(text);
+    Matcher m = XML_SPECIAL_PAT.matcher(text);
     if (!m.find())
       return text;
     StringBuffer buffer = new StringBuffer(text.substring(0, m.start()));
@@ -92,37 +100,6 @@ public class PicasawebService {
     return buffer.toString();
   }
 
-  private static String decodeXML(String text) {
-    Matcher m = Pattern.compile("&(amp|quot|apos|lt|gt);").matcher(text);
-    if (!m.find())
-      return text;
-    StringBuffer buffer = new StringBuffer(text.substring(0, m.start()));
-    do {
-      String ent = m.group(1);
-      String repl;
-      if ("amp".equals(ent))
-        repl = "&";
-      else if ("quot".equals(ent))
-        repl = "\"";
-      else if ("apos".equals(ent))
-        repl = "'";
-      else if ("lt".equals(ent))
-        repl = "<";
-      else if ("gt".equals(ent))
-        repl = ">";
-      else
-        repl = null;
-      m.appendReplacement(buffer, repl);
-    } while (m.find());
-    m.appendTail(buffer);
-    return buffer.toString();
-  }
-
-  private static String extractRegex(String data, String pattern) {
-    Matcher m = Pattern.compile(pattern, Pattern.DOTALL).matcher(data);
-    return m.find() ? m.group(1) : "";
-  }
-
   public PicasawebService(Context context) throws IOException {
     try {
       albumXML = inputStreamToString(context.getResources().openRawResource(
@@ -154,8 +131,13 @@ public class PicasawebService {
       PicasaAuthException {
     String url = "https://picasaweb.google.com/data/entry/api/user/default/albumid"
         + "?fields=entry(gphoto:id,title,summary,gphoto:access,updated,link[@rel='edit'])";
-    ByteArrayOutputStream baOut = new ByteArrayOutputStream();
-    int status = performPWCmd("GET", url, null, null, baOut);
+    final ArrayList<PicasaAlbum> list = new ArrayList<PicasaAlbum>();
+    int status = performPWCmd("GET", url, null, null, new EntryReader() {
+      @Override
+      public void onEntry(PicasaFeedReader.Entry entry) {
+        list.add(new PicasaAlbum(entry));
+      }
+    });
 
     if (status == HttpURLConnection.HTTP_NOT_FOUND)
       return null;
@@ -163,92 +145,99 @@ public class PicasawebService {
       throw new IOException("Got " + status
           + " HTTP status when retrieving album " + id + ".");
 
-    Pattern entryPat = Pattern.compile("<entry>.+?</entry>", Pattern.DOTALL);
-    Matcher m = entryPat.matcher(baOut.toString("UTF-8"));
-    if (m.find())
-      return new PicasaAlbum(m.group());
-
-    return null;
+    return list.isEmpty() ? null : list.get(0);
   }
 
   public Collection<PicasaAlbum> listAlbums() throws IOException,
       PicasaAuthException {
     String url = "https://picasaweb.google.com/data/feed/api/user/default?max-results=1000000"
         + "&fields=entry(gphoto:id,title,summary,gphoto:access,updated,link[@rel='edit'])";
-    ByteArrayOutputStream baOut = new ByteArrayOutputStream();
-    int status = performPWCmd("GET", url, null, null, baOut);
+    final ArrayList<PicasaAlbum> list = new ArrayList<PicasaAlbum>();
+    int status = performPWCmd("GET", url, null, null, new EntryReader() {
+      @Override
+      public void onEntry(PicasaFeedReader.Entry entry) {
+        list.add(new PicasaAlbum(entry));
+      }
+    });
 
     if (status != HttpURLConnection.HTTP_OK)
       throw new IOException("Got " + status
           + " HTTP status when retrieving list of albums.");
 
-    ArrayList<PicasaAlbum> list = new ArrayList<PicasaAlbum>();
-
-    Pattern entryPat = Pattern.compile("<entry>.+?</entry>", Pattern.DOTALL);
-    Matcher m = entryPat.matcher(baOut.toString("UTF-8"));
+    return list;
+  }
 
-    while (m.find())
-      list.add(new PicasaAlbum(m.group()));
+  /**
+   * Parses a successful response as a feed, handing over entries one by one.
+   * Unsuccessful responses are left unread.
+   */
+  private static abstract class EntryReader implements ResponseReader,
+      PicasaFeedReader.EntryHandler {
+    public int entryCount;
+    public String etag;
+
+    @Override
+    public void read(HttpURLConnection conn, InputStream in)
+        throws IOException {
+      int status = conn.getResponseCode();
+      etag = conn.getHeaderField("ETag");
+      if (status == HttpURLConnection.HTTP_OK
+          || status == HttpURLConnection.HTTP_CREATED)
+        entryCount = PicasaFeedReader.read(in, this);
+    }
+  }
 
-    return list;
+  private int performPWCmd(String method, String url,
+      Map<String, String> headers, InputStream dataIn,
+      final OutputStream dataOut) throws IOException, PicasaAuthException {
+    return performPWCmd(method, url, headers, dataIn,
+        dataOut == null ? null : new ResponseReader() {
+          @Override
+          public void read(HttpURLConnection conn, InputStream in)
+              throws IOException {
+            Streams.copy(in, dataOut);
+          }
+        });
   }
 
   private int performPWCmd(String method, String url,
-      Map<String, String> headers, InputStream dataIn, OutputStream dataOut)
+      Map<String, String> headers, InputStream dataIn, ResponseReader reader)
       throws IOException, PicasaAuthException {
+    return performPWCmd(method, url, headers, dataIn, -1, reader);
+  }
+
+  /**
+   * Performs a request, streaming <code>dataIn</code> as its body. If
+   * <code>dataLength</code> is known (ie not negative) the body is sent with a
+   * fixed Content-Length, otherwise it is sent chunked. Either way it's never
+   * buffered in memory as a whole.
+   */
+  private int performPWCmd(String method, String url,
+      Map<String, String> headers, InputStream dataIn, long dataLength,
+      ResponseReader reader) throws IOException, PicasaAuthException {
 
-    int bytesRead;
-    byte[] buffer = new byte[4096];
-    OutputStream outStream = null;
-    HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
-    conn.setRequestMethod(method);
-    conn.setRequestProperty("Authorization", "GoogleLogin auth=" + authToken);
+    HashMap<String, String> allHeaders = new HashMap<String, String>();
     if (headers != null)
-      for (String k : headers.keySet())
-        conn.setRequestProperty(k, headers.get(k));
-
-    // Send POST data
-
-    if (dataIn != null) {
-      conn.setDoOutput(true);
-      outStream = conn.getOutputStream();
-      bytesRead = dataIn.read(buffer);
-      while (bytesRead >= 0) {
-        outStream.write(buffer, 0, bytesRead);
-        bytesRead = dataIn.read(buffer);
-      }
-      outStream.flush();
-    }
+      allHeaders.putAll(headers);
+    allHeaders.put("Authorization", "GoogleLogin auth=" + authToken);
 
-    int responseCode = conn.getResponseCode();
+    int responseCode = transport.execute(method, url, allHeaders, dataIn,
+        dataLength, reader);
 
     if (responseCode == HttpURLConnection.HTTP_FORBIDDEN)
       throw new PicasaAuthException();
 
-    // Get response
-    InputStream inStream = null;
-    if (dataOut != null) {
-      try {
-        inStream = conn.getInputStream();
-      } catch (FileNotFoundException e1) {
-        inStream = conn.getErrorStream();
-      }
-
-      bytesRead = inStream.read(buffer);
-      while (bytesRead >= 0) {
-        dataOut.write(buffer, 0, bytesRead);
-        bytesRead = inStream.read(buffer);
-      }
-    }
-
-    if (outStream != null)
-      outStream.close();
-    if (inStream != null)
-      inStream.close();
-
     return responseCode;
   }
 
+  /**
+   * @return Summary of how well connections were reused by the requests made
+   *         so far.
+   */
+  public String getTransportStats() {
+    return transport.toString();
+  }
+
   public class PicasaAlbum {
 
     private String id;
@@ -258,16 +247,13 @@ public class PicasawebService {
     public String summary;
     public String access;
 
-    private PicasaAlbum(String data) {
-      title = decodeXML(extractRegex(data, "<title type='text'>([^<]+)</title>"));
-      summary = decodeXML(extractRegex(data,
-          "<summary type='text'>([^<]+)</summary>"));
-      access = decodeXML(extractRegex(data,
-          "<gphoto:access>([^<]+)</gphoto:access>"));
-      id = decodeXML(extractRegex(data, "<gphoto:id>([^<]+)</gphoto:id>"));
-      updated = decodeXML(extractRegex(data, "<updated>([^<]+)</updated>"));
-      editUrl = decodeXML(extractRegex(data,
-          "<link rel='edit' type='application/atom[+]xml' href='([^']*)"));
+    private PicasaAlbum(PicasaFeedReader.Entry entry) {
+      title = entry.title;
+      summary = entry.summary;
+      access = entry.access;
+      id = entry.id;
+      updated = entry.updated;
+      editUrl = entry.editUrl;
     }
 
     private PicasaAlbum() {
@@ -279,21 +265,21 @@ public class PicasawebService {
     }
 
     public PicasaAlbum save() throws PicasaAuthException, IOException {
-      ByteArrayInputStream newEntry = null;
-      ByteArrayOutputStream baOut = new ByteArrayOutputStream();
+      byte[] newEntry = null;
+      final ArrayList<PicasaAlbum> saved = new ArrayList<PicasaAlbum>();
       String url;
 
       try {
         if (id != null) {
           url = editUrl;
-          newEntry = new ByteArrayInputStream(String.format(albumUpdateXML,
-              encodeXML(id), encodeXML(title), encodeXML(summary),
-              encodeXML(access), new Date().getTime()).getBytes("UTF-8"));
+          newEntry = String.format(albumUpdateXML, encodeXML(id),
+              encodeXML(title), encodeXML(summary), encodeXML(access),
+              new Date().getTime()).getBytes("UTF-8");
 
         } else {
-          newEntry = new ByteArrayInputStream(String.format(albumXML,
-              encodeXML(title), encodeXML(summary), encodeXML(access),
-              new Date().getTime()).getBytes("UTF-8"));
+          newEntry = String.format(albumXML, encodeXML(title),
+              encodeXML(summary), encodeXML(access), new Date().getTime())
+              .getBytes("UTF-8");
           url = "https://picasaweb.google.com/data/feed/api/user/default";
         }
       } catch (UnsupportedEncodingException e) {
@@ -304,29 +290,43 @@ public class PicasawebService {
       HashMap<String, String> headers = new HashMap<String, String>();
       headers.put("Content-Type", "application/atom+xml");
       int status = performPWCmd(id == null ? "POST" : "PUT", url, headers,
-          newEntry, baOut);
+          new ByteArrayInputStream(newEntry), newEntry.length,
+          new EntryReader() {
+            @Override
+            public void onEntry(PicasaFeedReader.Entry entry) {
+              saved.add(new PicasaAlbum(entry));
+            }
+          });
 
       if (status != HttpURLConnection.HTTP_CREATED
           && status != HttpURLConnection.HTTP_OK)
         throw new IOException("Got " + status
             + " HTTP status when inserting/updating new album.");
+      if (saved.isEmpty())
+        throw new IOException(
+            "Got no entry back when inserting/updating album.");
 
-      return new PicasaAlbum(baOut.toString("UTF-8"));
+      return saved.get(0);
     }
 
-    public PicasaPhoto deserializePhoto(DataInputStream is) throws IOException {
+    /**
+     * Recreates a photo of this album from the fields of a previous listing.
+     */
+    public PicasaPhoto restorePhoto(String id, String uniqueId, String title,
+        String summary, String photoUrl, String editUrl, String editMediaUrl,
+        String mimeType, int width, int height, String updated) {
       PicasaPhoto p = new PicasaPhoto(this);
-      try {
-        p.id = is.readUTF();
-        p.uniqueId = is.readUTF();
-        p.title = is.readUTF();
-        p.summary = is.readUTF();
-        p.photoUrl = is.readUTF();
-        p.editUrl = is.readUTF();
-        p.editMediaUrl = is.readUTF();
-      } catch (EOFException e) {
-        return null;
-      }
+      p.id = id;
+      p.uniqueId = uniqueId;
+      p.title = title;
+      p.summary = summary;
+      p.photoUrl = photoUrl;
+      p.editUrl = editUrl;
+      p.editMediaUrl = editMediaUrl;
+      p.mimeType = mimeType;
+      p.width = width;
+      p.height = height;
+      p.updated = updated;
       return p;
     }
 
@@ -338,8 +338,13 @@ public class PicasawebService {
         PicasaAuthException {
       String url = "https://picasaweb.google.com/data/entry/api/user/default/albumid/"
           + this.id + "/photoid/" + id + "?imgmax=1600" + PHOTO_FIELD_PARAM;
-      ByteArrayOutputStream baOut = new ByteArrayOutputStream();
-      int status = performPWCmd("GET", url, null, null, baOut);
+      final ArrayList<PicasaPhoto> list = new ArrayList<PicasaPhoto>();
+      int status = performPWCmd("GET", url, null, null, new EntryReader() {
+        @Override
+        public void onEntry(PicasaFeedReader.Entry entry) {
+          list.add(new PicasaPhoto(PicasaAlbum.this, entry));
+        }
+      });
 
       if (status == HttpURLConnection.HTTP_NOT_FOUND)
         return null;
@@ -347,33 +352,119 @@ public class PicasawebService {
         throw new IOException("Got " + status
             + " HTTP status when retrieving photo " + id + ".");
 
-      Pattern entryPat = Pattern.compile("<entry>.+?</entry>", Pattern.DOTALL);
-      Matcher m = entryPat.matcher(baOut.toString("UTF-8"));
-      if (m.find())
-        return new PicasaPhoto(this, m.group());
+      return list.isEmpty() ? null : list.get(0);
+    }
 
-      return null;
+    /**
+     * Streams the photos of this album to <code>handler</code> as they are
+     * parsed off the wire. The feed is walked in pages of
+     * {@link #FEED_PAGE_SIZE} entries and a page which fails half way through
+     * is requested again on its own, so <code>handler</code> may see some
+     * photos more than once.
+     */
+    public void listPhotos(PhotoHandler handler) throws IOException,
+        PicasaAuthException {
+      listPhotos(handler, null, null);
     }
 
-    public Collection<PicasaPhoto> listPhotos() throws IOException,
+    /**
+     * Same as {@link #listPhotos(PhotoHandler)} but pages already held in
+     * <code>cache</code> are validated with <code>If-None-Match</code> and
+     * replayed from the cache when the server reports them unchanged.
+     */
+    public void listPhotos(PhotoHandler handler, PhotoPageCache cache)
+        throws IOException, PicasaAuthException {
+      listPhotos(handler, cache, null);
+    }
+
+    /**
+     * Incremental version of {@link #listPhotos(PhotoHandler)} which only
+     * lists photos updated at or after <code>updatedMin</code> (an Atom
+     * timestamp as returned by {@link PicasaPhoto#getUpdated()}). Deleted
+     * photos are not reported.
+     */
+    public void listPhotos(PhotoHandler handler, String updatedMin)
+        throws IOException, PicasaAuthException {
+      listPhotos(handler, null, updatedMin);
+    }
+
+    private void listPhotos(PhotoHandler handler, PhotoPageCache cache,
+        String updatedMin) throws IOException, PicasaAuthException {
+      int startIndex = 1;
+      while (true) {
+        int count = listPhotosPage(startIndex, handler, cache, updatedMin);
+        if (count < FEED_PAGE_SIZE)
+          break;
+        startIndex += count;
+      }
+    }
+
+    private int listPhotosPage(int startIndex, final PhotoHandler handler,
+        PhotoPageCache cache, String updatedMin) throws IOException,
         PicasaAuthException {
       String url = "https://picasaweb.google.com/data/feed/api/user/default/albumid/"
-          + id + "?imgmax=1600&max-results=1000000" + PHOTO_FIELD_PARAM;
-      ByteArrayOutputStream baOut = new ByteArrayOutputStream();
-      int status = performPWCmd("GET", url, null, null, baOut);
+          + id + "?imgmax=1600&start-index=" + startIndex + "&max-results="
+          + FEED_PAGE_SIZE + PHOTO_FIELD_PARAM;
+      if (updatedMin != null)
+        url += "&updated-min=" + URLEncoder.encode(updatedMin, "UTF-8");
 
-      if (status != HttpURLConnection.HTTP_OK)
-        throw new IOException("Got " + status
-            + " HTTP status when retrieving list of photos for album " + id
-            + ".");
+      // ETags are only handed out by version 2 of the API
 
-      ArrayList<PicasaPhoto> list = new ArrayList<PicasaPhoto>();
+      HashMap<String, String> headers = new HashMap<String, String>();
+      headers.put("GData-Version", "2");
+      String cachedETag = cache == null ? null : cache.getETag(startIndex);
+      if (cachedETag != null)
+        headers.put("If-None-Match", cachedETag);
+
+      for (int attempt = 1;; attempt++) {
+        final ArrayList<PicasaPhoto> page = cache == null ? null
+            : new ArrayList<PicasaPhoto>();
+        EntryReader reader = new EntryReader() {
+          @Override
+          public void onEntry(PicasaFeedReader.Entry entry) throws IOException {
+            PicasaPhoto photo = new PicasaPhoto(PicasaAlbum.this, entry);
+            if (page != null)
+              page.add(photo);
+            handler.onPhoto(photo);
+          }
+        };
+
+        int status;
+        try {
+          status = performPWCmd("GET", url, headers, null, reader);
+        } catch (IOException e) {
+          if (attempt >= FEED_PAGE_ATTEMPTS)
+            throw e;
+          Log.w(TAG, "Retrying page at " + startIndex + " of album " + id
+              + ": " + e.getMessage());
+          continue;
+        }
+
+        if (status == HttpURLConnection.HTTP_NOT_MODIFIED
+            && cachedETag != null)
+          return cache.replay(startIndex, handler);
+
+        if (status != HttpURLConnection.HTTP_OK)
+          throw new IOException("Got " + status
+              + " HTTP status when retrieving list of photos for album " + id
+              + ".");
+
+        if (cache != null && reader.etag != null)
+          cache.put(startIndex, reader.etag, page);
 
-      Pattern entryPat = Pattern.compile("<entry>.+?</entry>", Pattern.DOTALL);
-      Matcher m = entryPat.matcher(baOut.toString("UTF-8"));
-      while (m.find())
-        list.add(new PicasaPhoto(this, m.group()));
+        return reader.entryCount;
+      }
+    }
 
+    public Collection<PicasaPhoto> listPhotos() throws IOException,
+        PicasaAuthException {
+      final ArrayList<PicasaPhoto> list = new ArrayList<PicasaPhoto>();
+      listPhotos(new PhotoHandler() {
+        @Override
+        public void onPhoto(PicasaPhoto photo) {
+          list.add(photo);
+        }
+      });
       return list;
     }
 
@@ -387,37 +478,31 @@ public class PicasawebService {
     private String id;
     private PicasaAlbum album;
     private InputStream photoStream;
+    private long photoLength = -1;
     private String editUrl;
     private String editMediaUrl;
     private String photoUrl;
     private String mimeType;
+    private String updated;
     private int width;
     private int height;
     public String title;
     public String summary;
 
-    private PicasaPhoto(PicasaAlbum album, String data) {
+    private PicasaPhoto(PicasaAlbum album, PicasaFeedReader.Entry entry) {
       this.album = album;
 
-      title = decodeXML(extractRegex(data, "<title type='text'>([^<]+)</title>"));
-      summary = decodeXML(extractRegex(data,
-          "<summary type='text'>([^<]+)</summary>"));
-      uniqueId = decodeXML(extractRegex(data,
-          "<exif:imageUniqueID>([^<]+)</exif:imageUniqueID>"));
-      id = decodeXML(extractRegex(data, "<gphoto:id>([^<]+)</gphoto:id>"));
-      editUrl = decodeXML(extractRegex(data,
-          "<link rel='edit' type='application/atom[+]xml' href='([^']*)"));
-      editMediaUrl = decodeXML(extractRegex(data,
-          "<link rel='edit-media' type='image/[^']+' href='([^']*)"));
-      mimeType = decodeXML(extractRegex(data,
-          "<content type='(image/[^']+)' src"));
-      photoUrl = decodeXML(
-          extractRegex(data, "<content type='image/[^']+' src='([^']*)"))
-          .replace("/s1600/", "/s0/");
-      width = Integer.parseInt(decodeXML(extractRegex(data,
-          "<gphoto:width>([^<]+)</gphoto:width>")));
-      height = Integer.parseInt(decodeXML(extractRegex(data,
-          "<gphoto:height>([^<]+)</gphoto:height>")));
+      title = entry.title;
+      summary = entry.summary;
+      uniqueId = entry.uniqueId;
+      id = entry.id;
+      editUrl = entry.editUrl;
+      editMediaUrl = entry.editMediaUrl;
+      mimeType = entry.mimeType;
+      updated = entry.updated;
+      photoUrl = entry.contentUrl.replace("/s1600/", "/s0/");
+      width = entry.width;
+      height = entry.height;
     }
 
     private PicasaPhoto(PicasaAlbum album) {
@@ -440,29 +525,45 @@ public class PicasawebService {
       return uniqueId;
     }
 
+    public String getUpdated() {
+      return updated;
+    }
+
     public String getId() {
       return id;
     }
 
+    public String getPhotoUrl() {
+      return photoUrl;
+    }
+
+    public String getEditUrl() {
+      return editUrl;
+    }
+
+    public String getEditMediaUrl() {
+      return editMediaUrl;
+    }
+
     public PicasaAlbum getAlbum() {
       return album;
     }
 
     public PicasaPhoto save() throws PicasaAuthException, IOException {
-      ByteArrayInputStream newEntry = null;
-      ByteArrayOutputStream baOut = new ByteArrayOutputStream();
+      byte[] newEntry = null;
+      final ArrayList<PicasaPhoto> saved = new ArrayList<PicasaPhoto>();
 
       String url;
 
       try {
         if (id != null) {
           url = photoStream == null ? editUrl : editMediaUrl;
-          newEntry = new ByteArrayInputStream(String.format(photoUpdateXML,
-              encodeXML(id), encodeXML(album.getId()), encodeXML(title),
-              encodeXML(summary), new Date().getTime()).getBytes("UTF-8"));
+          newEntry = String.format(photoUpdateXML, encodeXML(id),
+              encodeXML(album.getId()), encodeXML(title), encodeXML(summary),
+              new Date().getTime()).getBytes("UTF-8");
         } else {
-          newEntry = new ByteArrayInputStream(String.format(photoXML,
-              encodeXML(title), encodeXML(summary)).getBytes("UTF-8"));
+          newEntry = String.format(photoXML, encodeXML(title),
+              encodeXML(summary)).getBytes("UTF-8");
           url = "https://picasaweb.google.com/data/feed/api/user/default/albumid/"
               + album.getId();
         }
@@ -473,35 +574,46 @@ public class PicasawebService {
 
       HashMap<String, String> headers = new HashMap<String, String>();
       InputStream baIn;
+      long baLength;
       if (photoStream == null) {
         headers.put("Content-Type", "application/atom+xml");
-        baIn = newEntry;
+        baIn = new ByteArrayInputStream(newEntry);
+        baLength = newEntry.length;
       } else {
         headers.put("Content-Type",
             "multipart/related; boundary=\"END_OF_PART\"");
         headers.put("MIME-version", "1.0");
 
-        ByteArrayInputStream bit1 = new ByteArrayInputStream(
-            "Media multipart posting\r\n--END_OF_PART\r\nContent-Type: application/atom+xml\r\n\r\n"
-                .getBytes("UTF-8"));
-        ByteArrayInputStream bit2 = new ByteArrayInputStream(
-            "\r\n--END_OF_PART\r\nContent-Type: image/jpeg\r\n\r\n"
-                .getBytes("UTF-8"));
-        ByteArrayInputStream bit3 = new ByteArrayInputStream(
-            "\r\n--END_OF_PART--".getBytes("UTF-8"));
-
-        baIn = new ConcatInputStreams(Arrays.asList(new InputStream[] { bit1,
-            newEntry, bit2, photoStream, bit3 }));
+        byte[] bit1 = "Media multipart posting\r\n--END_OF_PART\r\nContent-Type: application/atom+xml\r\n\r\n"
+            .getBytes("UTF-8");
+        byte[] bit2 = "\r\n--END_OF_PART\r\nContent-Type: image/jpeg\r\n\r\n"
+            .getBytes("UTF-8");
+        byte[] bit3 = "\r\n--END_OF_PART--".getBytes("UTF-8");
+
+        baIn = new ConcatInputStreams(Arrays.asList(new InputStream[] {
+            new ByteArrayInputStream(bit1), new ByteArrayInputStream(newEntry),
+            new ByteArrayInputStream(bit2), photoStream,
+            new ByteArrayInputStream(bit3) }));
+        baLength = photoLength < 0 ? -1 : bit1.length + newEntry.length
+            + bit2.length + photoLength + bit3.length;
       }
       int status = performPWCmd(id == null ? "POST" : "PUT", url, headers,
-          baIn, baOut);
+          baIn, baLength, new EntryReader() {
+            @Override
+            public void onEntry(PicasaFeedReader.Entry entry) {
+              saved.add(new PicasaPhoto(album, entry));
+            }
+          });
 
       if (status != HttpURLConnection.HTTP_CREATED
           && status != HttpURLConnection.HTTP_OK)
         throw new IOException("Got " + status
             + " HTTP status when inserting/updating photo.");
+      if (saved.isEmpty())
+        throw new IOException(
+            "Got no entry back when inserting/updating photo.");
 
-      return new PicasaPhoto(album, baOut.toString("UTF-8"));
+      return saved.get(0);
 
     }
 
@@ -516,23 +628,293 @@ public class PicasawebService {
     }
 
     public void setPhotoStream(InputStream photoStream) {
+      setPhotoStream(photoStream, -1);
+    }
+
+    /**
+     * Sets the photo to be uploaded on the next {@link #save()}. Knowing the
+     * <code>length</code> of the photo in advance lets the upload be sent with
+     * a fixed Content-Length.
+     */
+    public void setPhotoStream(InputStream photoStream, long length) {
       this.photoStream = photoStream;
+      this.photoLength = length;
     }
 
     public boolean delete() throws IOException, PicasaAuthException {
-      return performPWCmd("DELETE", editUrl, null, null, null) == HttpURLConnection.HTTP_OK;
+      return performPWCmd("DELETE", editUrl, null, null, (ResponseReader) null) == HttpURLConnection.HTTP_OK;
+    }
+
+  }
+
+  /**
+   * Finds the part of a photo URL that is shared with the same kind of URL of
+   * other photos, i.e. up to the photo ID (as in edit URLs) or failing that,
+   * up to the end of the host name.
+   * 
+   * @return Length of the prefix.
+   */
+  static int getUrlPrefixLength(String url, String photoId) {
+    int split = url.indexOf("/" + photoId);
+    if (split < 0) {
+      int host = url.indexOf("://");
+      split = host < 0 ? -1 : url.indexOf('/', host + 3);
+    }
+    return split + 1;
+  }
+
+  /**
+   * Compact store of the photos of an album, meant for holding tens of
+   * thousands of them at once. Photos are kept in columns rather than as
+   * objects: IDs as longs, URLs split into an interned prefix and a suffix,
+   * and MIME types interned. The album is referenced once by the store rather
+   * than by every photo. {@link PicasaPhoto}s are only created when a row is
+   * asked for, each a new and independent copy.
+   * <p>
+   * Photos can also be indexed by title, in an open addressing hash table of
+   * row numbers. As with a map, indexing a row replaces any other row with
+   * the same title.
+   * <p>
+   * Not thread safe.
+   */
+  public static class PhotoStore {
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int NO_ROW = 0;
+    private static final int REMOVED_ROW = -1;
+
+    private final PicasaAlbum album;
+    private final ArrayList<String> symbols = new ArrayList<String>();
+    private final HashMap<String, Integer> symbolIds = new HashMap<String, Integer>();
+
+    private int size;
+    private long[] ids = new long[INITIAL_CAPACITY];
+    private String[] uniqueIds = new String[INITIAL_CAPACITY];
+    private String[] titles = new String[INITIAL_CAPACITY];
+    private String[] summaries = new String[INITIAL_CAPACITY];
+    private String[] updated = new String[INITIAL_CAPACITY];
+    private int[] mimeTypes = new int[INITIAL_CAPACITY];
+    private int[] widths = new int[INITIAL_CAPACITY];
+    private int[] heights = new int[INITIAL_CAPACITY];
+    private int[] urlPrefixes = new int[INITIAL_CAPACITY * 3];
+    private String[] urlSuffixes = new String[INITIAL_CAPACITY * 3];
+
+    /**
+     * Title index slots, each holding a row number plus one, or
+     * {@link #NO_ROW} or {@link #REMOVED_ROW}.
+     */
+    private int[] titleSlots = new int[INITIAL_CAPACITY * 2];
+    private int titleSlotsUsed;
+
+    public PhotoStore(PicasaAlbum album) {
+      this.album = album;
     }
 
-    public void serialize(DataOutputStream os) throws IOException {
-      os.writeUTF(id);
-      os.writeUTF(uniqueId);
-      os.writeUTF(title);
-      os.writeUTF(summary);
-      os.writeUTF(photoUrl);
-      os.writeUTF(editUrl);
-      os.writeUTF(editMediaUrl);
+    public int size() {
+      return size;
+    }
+
+    /**
+     * Adds a copy of <code>photo</code> to the store, without indexing it.
+     * 
+     * @return Row number of the photo.
+     * @throws IOException If the photo ID isn't numeric.
+     */
+    public int add(PicasaPhoto photo) throws IOException {
+      long id;
+      try {
+        id = Long.parseLong(photo.id);
+      } catch (NumberFormatException e) {
+        throw new IOException("Non-numeric photo ID " + photo.id);
+      }
+      if (size == ids.length)
+        grow();
+      int row = size++;
+      ids[row] = id;
+      uniqueIds[row] = photo.uniqueId;
+      titles[row] = photo.title;
+      summaries[row] = photo.summary;
+      updated[row] = photo.updated;
+      mimeTypes[row] = intern(photo.mimeType);
+      widths[row] = photo.width;
+      heights[row] = photo.height;
+      setUrl(row * 3, photo.photoUrl, photo.id);
+      setUrl(row * 3 + 1, photo.editUrl, photo.id);
+      setUrl(row * 3 + 2, photo.editMediaUrl, photo.id);
+      return row;
     }
 
+    public PicasaPhoto get(int row) {
+      return album.restorePhoto(getId(row), uniqueIds[row], titles[row],
+          summaries[row], getUrl(row * 3), getUrl(row * 3 + 1),
+          getUrl(row * 3 + 2), symbols.get(mimeTypes[row]), widths[row],
+          heights[row], updated[row]);
+    }
+
+    /**
+     * @return List of the photos in rows <code>first</code> to
+     *         <code>first + count</code>, created as they're accessed.
+     */
+    public List<PicasaPhoto> getRange(final int first, final int count) {
+      return new AbstractList<PicasaPhoto>() {
+        @Override
+        public PicasaPhoto get(int location) {
+          return PhotoStore.this.get(first + location);
+        }
+
+        @Override
+        public int size() {
+          return count;
+        }
+      };
+    }
+
+    public String getId(int row) {
+      return Long.toString(ids[row]);
+    }
+
+    public String getTitle(int row) {
+      return titles[row];
+    }
+
+    public String getSummary(int row) {
+      return summaries[row];
+    }
+
+    /**
+     * @return Row of the photo indexed under <code>title</code> or -1 if
+     *         there is none.
+     */
+    public int findByTitle(String title) {
+      int slot = findTitleSlot(title);
+      return titleSlots[slot] > 0 ? titleSlots[slot] - 1 : -1;
+    }
+
+    /**
+     * Indexes <code>row</code> by its title.
+     * 
+     * @return Row previously indexed under the same title or -1 if there was
+     *         none.
+     */
+    public int indexTitle(int row) {
+      if ((titleSlotsUsed + 1) * 2 > titleSlots.length)
+        rehashTitles(titleSlots.length * 2);
+      int slot = findTitleSlot(titles[row]);
+      int old = titleSlots[slot] - 1;
+      if (titleSlots[slot] == NO_ROW)
+        titleSlotsUsed++;
+      titleSlots[slot] = row + 1;
+      return old < 0 ? -1 : old;
+    }
+
+    /**
+     * Removes <code>row</code> from the title index, if indexed.
+     */
+    public void unindexTitle(int row) {
+      int slot = findTitleSlot(titles[row]);
+      if (titleSlots[slot] == row + 1)
+        titleSlots[slot] = REMOVED_ROW;
+    }
+
+    /**
+     * @return The slot holding <code>title</code> or if there's none, the
+     *         first free slot for it.
+     */
+    private int findTitleSlot(String title) {
+      int mask = titleSlots.length - 1;
+      int hash = title == null ? 0 : title.hashCode();
+      int slot = (hash ^ (hash >>> 16)) & mask;
+      int free = -1;
+      for (;;) {
+        int entry = titleSlots[slot];
+        if (entry == NO_ROW)
+          return free < 0 ? slot : free;
+        if (entry == REMOVED_ROW) {
+          if (free < 0)
+            free = slot;
+        } else if (title == null ? titles[entry - 1] == null : title
+            .equals(titles[entry - 1])) {
+          return slot;
+        }
+        slot = (slot + 1) & mask;
+      }
+    }
+
+    private void rehashTitles(int capacity) {
+      int[] old = titleSlots;
+      titleSlots = new int[capacity];
+      titleSlotsUsed = 0;
+      for (int entry : old)
+        if (entry > 0) {
+          titleSlots[findTitleSlot(titles[entry - 1])] = entry;
+          titleSlotsUsed++;
+        }
+    }
+
+    private void grow() {
+      int capacity = ids.length * 2;
+      ids = Arrays.copyOf(ids, capacity);
+      uniqueIds = Arrays.copyOf(uniqueIds, capacity);
+      titles = Arrays.copyOf(titles, capacity);
+      summaries = Arrays.copyOf(summaries, capacity);
+      updated = Arrays.copyOf(updated, capacity);
+      mimeTypes = Arrays.copyOf(mimeTypes, capacity);
+      widths = Arrays.copyOf(widths, capacity);
+      heights = Arrays.copyOf(heights, capacity);
+      urlPrefixes = Arrays.copyOf(urlPrefixes, capacity * 3);
+      urlSuffixes = Arrays.copyOf(urlSuffixes, capacity * 3);
+    }
+
+    private void setUrl(int column, String url, String photoId) {
+      if (url == null) {
+        urlPrefixes[column] = -1;
+        urlSuffixes[column] = null;
+        return;
+      }
+      // Substrings share the characters of the whole URL, which would then
+      // be kept alive by each piece, so the pieces are copied.
+
+      int split = getUrlPrefixLength(url, photoId);
+      urlPrefixes[column] = intern(url.substring(0, split));
+      urlSuffixes[column] = new String(url.substring(split));
+    }
+
+    private String getUrl(int column) {
+      return urlPrefixes[column] < 0 ? null : symbols.get(urlPrefixes[column])
+          + urlSuffixes[column];
+    }
+
+    private int intern(String symbol) {
+      Integer id = symbolIds.get(symbol);
+      if (id == null) {
+        id = symbols.size();
+        symbol = new String(symbol);
+        symbols.add(symbol);
+        symbolIds.put(symbol, id);
+      }
+      return id;
+    }
+  }
+
+  public interface PhotoHandler {
+    void onPhoto(PicasaPhoto photo) throws IOException;
+  }
+
+  /**
+   * Keeps copies of album feed pages, keyed by their start index, along with
+   * the ETag the server sent for each.
+   */
+  public interface PhotoPageCache {
+    String getETag(int startIndex);
+
+    /**
+     * Hands the cached photos of a page over to <code>handler</code>.
+     * 
+     * @return Number of photos in the page.
+     */
+    int replay(int startIndex, PhotoHandler handler) throws IOException;
+
+    void put(int startIndex, String etag, List<PicasaPhoto> photos);
   }
 
   @SuppressWarnings("serial")
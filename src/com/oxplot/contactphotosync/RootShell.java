@@ -0,0 +1,217 @@
+/**
+ * RootShell.java - Long lived root shell.
+ *
+ * Copyright (C) 2012 Mansour <mansour@oxplot.com>
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.oxplot.contactphotosync;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import android.os.SystemClock;
+
+/**
+ * A single <code>su</code> process kept around for the life of the app
+ * process, so that running commands as root doesn't involve a new process
+ * and superuser handshake every time. Commands are queued on a
+ * {@link Script} and sent to the shell in one go, after which the exit status
+ * of each command is reported back.
+ * <p>
+ * If the shell dies (e.g. because root was denied), it is started again on
+ * next use. Output of the shell is read on a thread of its own so that a
+ * script that doesn't finish in time, or whose caller is interrupted, can be
+ * given up on; the shell is then terminated.
+ */
+class RootShell {
+
+  private static final String DONE_MARKER = "--rootshell-done--";
+
+  /**
+   * Time a script is given to finish, including any superuser prompt the
+   * first use of the shell brings up (ms).
+   */
+  private static final long TIMEOUT = 30000;
+
+  /**
+   * Queued after the last line of output of the shell. Compared by identity.
+   */
+  private static final String END_OF_OUTPUT = new String();
+
+  private static RootShell instance;
+
+  private Process process;
+  private DataOutputStream stdin;
+
+  /**
+   * Lines of output of the shell, as read by its reader thread.
+   */
+  private LinkedBlockingQueue<String> stdout;
+
+  /**
+   * Commands to be run as root, in order, within one round trip to the shell.
+   */
+  public static class Script {
+    private final ArrayList<String> commands = new ArrayList<String>();
+
+    public Script add(String command) {
+      commands.add(command);
+      return this;
+    }
+
+    /**
+     * @return Exit status of each command or <code>null</code> if the root
+     *         shell isn't available.
+     */
+    public int[] run() {
+      return getInstance().run(commands);
+    }
+
+    /**
+     * @return <code>true</code> if the shell is available and all commands
+     *         exited with 0.
+     */
+    public boolean runAll() {
+      int[] results = run();
+      if (results == null)
+        return false;
+      for (int r : results)
+        if (r != 0)
+          return false;
+      return true;
+    }
+  }
+
+  public static synchronized RootShell getInstance() {
+    if (instance == null)
+      instance = new RootShell();
+    return instance;
+  }
+
+  private RootShell() {}
+
+  /**
+   * Runs <code>commands</code> in the root shell. A command may be a multi
+   * line script in which case its status is that of its last line. If the
+   * commands don't finish within {@link #TIMEOUT} or the calling thread is
+   * interrupted, the shell is terminated. The interrupt status of the thread
+   * is kept.
+   *
+   * @return Exit status of each command or <code>null</code> if the root
+   *         shell isn't available or the commands didn't finish.
+   */
+  public synchronized int[] run(List<String> commands) {
+    if (!ensureStarted())
+      return null;
+
+    // The marker goes on a line of its own, even when the output of the
+    // command doesn't end with a new line.
+
+    StringBuilder script = new StringBuilder();
+    for (int i = 0; i < commands.size(); i++)
+      script.append(commands.get(i)).append("\nrootshell_status=$?; echo; ")
+          .append("echo ").append(DONE_MARKER).append(' ').append(i)
+          .append(" $rootshell_status\n");
+
+    int[] results = new int[commands.size()];
+    long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+    try {
+      stdin.writeBytes(script.toString());
+      stdin.flush();
+
+      for (int done = 0; done < results.length;) {
+        String line = stdout.poll(deadline - SystemClock.uptimeMillis(),
+            TimeUnit.MILLISECONDS);
+        if (line == null)
+          throw new IOException("Root shell timed out");
+        if (line == END_OF_OUTPUT)
+          throw new IOException("Root shell exited");
+        String[] parts = line.split(" ");
+        if (parts.length != 3 || !DONE_MARKER.equals(parts[0]))
+          continue;
+        results[Integer.parseInt(parts[1])] = Integer.parseInt(parts[2]);
+        done++;
+      }
+    } catch (IOException e) {
+      close();
+      return null;
+    } catch (NumberFormatException e) {
+      close();
+      return null;
+    } catch (InterruptedException e) {
+      close();
+      Thread.currentThread().interrupt();
+      return null;
+    }
+
+    return results;
+  }
+
+  /**
+   * Terminates the shell, if running.
+   */
+  public synchronized void close() {
+    if (process == null)
+      return;
+    try {
+      stdin.writeBytes("\nexit\n");
+      stdin.flush();
+    } catch (IOException e) {}
+    process.destroy();
+    process = null;
+    stdin = null;
+    stdout = null;
+  }
+
+  private boolean ensureStarted() {
+    if (process != null)
+      return true;
+    try {
+      process = new ProcessBuilder("su").redirectErrorStream(true).start();
+    } catch (IOException e) {
+      return false;
+    }
+    stdin = new DataOutputStream(process.getOutputStream());
+    stdout = new LinkedBlockingQueue<String>();
+
+    // The reader ends once the shell is terminated and its output closed
+
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(
+        process.getInputStream()));
+    final LinkedBlockingQueue<String> lines = stdout;
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          for (String line; (line = reader.readLine()) != null;)
+            lines.add(line);
+        } catch (IOException e) {}
+        lines.add(END_OF_OUTPUT);
+      }
+    }, "RootShell");
+    thread.setDaemon(true);
+    thread.start();
+    return true;
+  }
+}
@@ -45,8 +45,10 @@ public class SelectAccountActivity extends Activity {
     setTitle(getResources().getString(R.string.title_activity_select_account));
 
     // Let's see if the user is willing to give us root permission at the very
-    // start
+    // start. The shell isn't needed again until a photo is stored, so it's
+    // not kept running in the UI process.
     Util.runRoot("");
+    RootShell.getInstance().close();
 
     setContentView(R.layout.activity_select_account);
     getActionBar().setHomeButtonEnabled(false);
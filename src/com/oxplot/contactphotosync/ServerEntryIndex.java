@@ -0,0 +1,525 @@
+/**
+ * ServerEntryIndex.java - On-disk index of album photos.
+ *
+ * Copyright (C) 2012 Mansour <mansour@oxplot.com>
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.oxplot.contactphotosync;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+
+import com.oxplot.contactphotosync.PicasawebService.PicasaAlbum;
+import com.oxplot.contactphotosync.PicasawebService.PicasaPhoto;
+
+/**
+ * Photos of an album as last listed, stored in a compact binary file which is
+ * memory mapped and read only as far as lookups need, so that opening the
+ * index costs the same regardless of the size of the album.
+ * <p>
+ * The file is laid out as a header followed by these sections:
+ * <ul>
+ * <li>Pages of the album feed: start index, ETag and range of records.</li>
+ * <li>Fixed width photo records. Records of the pages come first, followed
+ * by records of photos that changed since the pages were listed. The latter
+ * supersede the former with the same photo ID.</li>
+ * <li>Record numbers of the current (i.e. not superseded) photos, sorted by
+ * title.</li>
+ * <li>Same as above, sorted by normalized summary.</li>
+ * <li>String pool referenced from all of the above, with each distinct
+ * string stored once. URLs are split in two so the long prefixes shared by
+ * the URLs of all photos are pooled too.</li>
+ * </ul>
+ * All numbers are big endian and strings are UTF-8 preceded by their length
+ * as an unsigned short.
+ */
+class ServerEntryIndex {
+
+  private static final int MAGIC = 0x41505349; // APSI
+  private static final int VERSION = 2;
+
+  private static final int HEADER_SIZE = 40;
+  private static final int PAGE_SIZE = 16;
+  private static final int RECORD_SIZE = 60;
+  private static final int NO_STRING = -1;
+
+  // Record field offsets
+
+  private static final int R_ID = 0;
+  private static final int R_UNIQUE_ID = 8;
+  private static final int R_TITLE = 12;
+  private static final int R_SUMMARY = 16;
+  private static final int R_PHOTO_URL = 20;
+  private static final int R_EDIT_URL = 28;
+  private static final int R_EDIT_MEDIA_URL = 36;
+  private static final int R_MIME_TYPE = 44;
+  private static final int R_WIDTH = 48;
+  private static final int R_HEIGHT = 52;
+  private static final int R_UPDATED = 56;
+
+  private static final int[] R_STRINGS = new int[] { R_UNIQUE_ID, R_TITLE,
+      R_SUMMARY, R_PHOTO_URL, R_PHOTO_URL + 4, R_EDIT_URL, R_EDIT_URL + 4,
+      R_EDIT_MEDIA_URL, R_EDIT_MEDIA_URL + 4, R_MIME_TYPE, R_UPDATED };
+
+  /**
+   * A page of the album feed.
+   */
+  public static class Page {
+    public int startIndex;
+    public String etag;
+    public List<PicasaPhoto> photos;
+  }
+
+  private final ByteBuffer buffer;
+  private final int pageCount;
+  private final int recordCount;
+  private final int changedCount;
+  private final int currentCount;
+  private final int pagesOffset;
+  private final int recordsOffset;
+  private final int titlesOffset;
+  private final int summariesOffset;
+  private final int poolOffset;
+
+  private ServerEntryIndex(ByteBuffer buffer) throws IOException {
+    this.buffer = buffer;
+    if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+        || buffer.getInt(4) != VERSION)
+      throw new IOException("Not a server entry index");
+    pageCount = buffer.getInt(20);
+    recordCount = buffer.getInt(24);
+    changedCount = buffer.getInt(28);
+    currentCount = buffer.getInt(32);
+    int poolSize = buffer.getInt(36);
+    if (pageCount < 0 || recordCount < 0 || changedCount < 0
+        || changedCount > recordCount || currentCount < 0 || poolSize < 0
+        || HEADER_SIZE + (long) pageCount * PAGE_SIZE + (long) recordCount
+            * RECORD_SIZE + currentCount * 8L + poolSize != buffer.capacity())
+      throw new IOException("Corrupt server entry index");
+
+    pagesOffset = HEADER_SIZE;
+    recordsOffset = pagesOffset + pageCount * PAGE_SIZE;
+    titlesOffset = recordsOffset + recordCount * RECORD_SIZE;
+    summariesOffset = titlesOffset + currentCount * 4;
+    poolOffset = summariesOffset + currentCount * 4;
+    validate();
+  }
+
+  /**
+   * Checks all references within the index up front, so that lookups never
+   * run off the buffer later on.
+   */
+  private void validate() throws IOException {
+    boolean valid = isValidString(16);
+    for (int page = 0; valid && page < pageCount; page++) {
+      int offset = pagesOffset + page * PAGE_SIZE;
+      int first = buffer.getInt(offset + 8);
+      int count = buffer.getInt(offset + 12);
+      valid = isValidString(offset + 4) && first >= 0 && count >= 0
+          && first <= recordCount - count;
+    }
+    for (int record = 0; valid && record < recordCount; record++)
+      for (int field : R_STRINGS)
+        valid &= isValidString(recordsOffset + record * RECORD_SIZE + field);
+    for (int i = 0; valid && i < currentCount * 2; i++) {
+      int record = buffer.getInt(titlesOffset + i * 4);
+      valid = record >= 0 && record < recordCount;
+    }
+    if (!valid)
+      throw new IOException("Corrupt server entry index");
+  }
+
+  private boolean isValidString(int offset) {
+    int ref = buffer.getInt(offset);
+    if (ref == NO_STRING)
+      return true;
+    if (ref < 0 || ref > buffer.capacity() - poolOffset - 2)
+      return false;
+    int start = poolOffset + ref;
+    return (buffer.getShort(start) & 0xffff) <= buffer.capacity() - start - 2;
+  }
+
+  /**
+   * Maps the index in <code>file</code> into memory.
+   */
+  public static ServerEntryIndex open(File file) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      FileChannel channel = in.getChannel();
+      return new ServerEntryIndex(channel.map(MapMode.READ_ONLY, 0,
+          channel.size()));
+    } finally {
+      in.close();
+    }
+  }
+
+  public long getLastFullListing() {
+    return buffer.getLong(8);
+  }
+
+  public String getHighWater() {
+    String highWater = getString(16);
+    return highWater == null ? "" : highWater;
+  }
+
+  public int getPageCount() {
+    return pageCount;
+  }
+
+  /**
+   * @return Position of the page with <code>startIndex</code> or -1 if there
+   *         is no such page.
+   */
+  public int findPage(int startIndex) {
+    int lo = 0;
+    int hi = pageCount - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int s = buffer.getInt(pagesOffset + mid * PAGE_SIZE);
+      if (s < startIndex)
+        lo = mid + 1;
+      else if (s > startIndex)
+        hi = mid - 1;
+      else
+        return mid;
+    }
+    return -1;
+  }
+
+  public String getPageETag(int page) {
+    return getString(pagesOffset + page * PAGE_SIZE + 4);
+  }
+
+  /**
+   * @return The page at position <code>page</code>. Its photos are read off
+   *         the index as they're accessed.
+   */
+  public Page getPage(int page, final PicasaAlbum album) {
+    int offset = pagesOffset + page * PAGE_SIZE;
+    Page p = new Page();
+    p.startIndex = buffer.getInt(offset);
+    p.etag = getString(offset + 4);
+    final int first = buffer.getInt(offset + 8);
+    final int count = buffer.getInt(offset + 12);
+    p.photos = new AbstractList<PicasaPhoto>() {
+      @Override
+      public PicasaPhoto get(int location) {
+        return getPhoto(first + location, album);
+      }
+
+      @Override
+      public int size() {
+        return count;
+      }
+    };
+    return p;
+  }
+
+  /**
+   * @return Photos that changed since the pages were listed, in the order
+   *         they were stored.
+   */
+  public List<PicasaPhoto> getChanged(PicasaAlbum album) {
+    ArrayList<PicasaPhoto> changed = new ArrayList<PicasaPhoto>();
+    for (int i = recordCount - changedCount; i < recordCount; i++)
+      changed.add(getPhoto(i, album));
+    return changed;
+  }
+
+  /**
+   * @return Record numbers of the current photos titled <code>title</code>,
+   *         in record order.
+   */
+  public int[] findByTitle(String title) {
+    return find(titlesOffset, R_TITLE, title, false);
+  }
+
+  /**
+   * @return Record numbers of the current photos whose summary normalizes to
+   *         <code>summary</code>, in record order.
+   * @see #normalizeSummary(String)
+   */
+  public int[] findBySummary(String summary) {
+    return find(summariesOffset, R_SUMMARY, summary, true);
+  }
+
+  /**
+   * @return The photo ID of record <code>record</code>.
+   */
+  public String getId(int record) {
+    return Long.toString(buffer.getLong(recordsOffset + record * RECORD_SIZE
+        + R_ID));
+  }
+
+  public PicasaPhoto getPhoto(int record, PicasaAlbum album) {
+    int offset = recordsOffset + record * RECORD_SIZE;
+    return album.restorePhoto(getId(record), getString(offset + R_UNIQUE_ID),
+        getString(offset + R_TITLE), getString(offset + R_SUMMARY),
+        getUrl(offset + R_PHOTO_URL), getUrl(offset + R_EDIT_URL),
+        getUrl(offset + R_EDIT_MEDIA_URL), getString(offset + R_MIME_TYPE),
+        buffer.getInt(offset + R_WIDTH), buffer.getInt(offset + R_HEIGHT),
+        getString(offset + R_UPDATED));
+  }
+
+  /**
+   * Key photos are matched by in the summary table. The locale is fixed as
+   * the table is stored sorted by it.
+   */
+  public static String normalizeSummary(String summary) {
+    return summary.trim().toLowerCase(Locale.US);
+  }
+
+  private int[] find(int tableOffset, int field, String key,
+      boolean normalize) {
+    int lo = 0;
+    int hi = currentCount;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (compareKey(tableOffset, mid, field, key, normalize) < 0)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    int start = lo;
+    hi = currentCount;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (compareKey(tableOffset, mid, field, key, normalize) <= 0)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    int[] records = new int[lo - start];
+    for (int i = 0; i < records.length; i++)
+      records[i] = buffer.getInt(tableOffset + (start + i) * 4);
+    return records;
+  }
+
+  private int compareKey(int tableOffset, int position, int field,
+      String key, boolean normalize) {
+    int record = buffer.getInt(tableOffset + position * 4);
+    String value = getString(recordsOffset + record * RECORD_SIZE + field);
+    value = value == null ? "" : value;
+    return (normalize ? normalizeSummary(value) : value).compareTo(key);
+  }
+
+  private String getUrl(int offset) {
+    String prefix = getString(offset);
+    String suffix = getString(offset + 4);
+    return prefix == null ? null : prefix + suffix;
+  }
+
+  /**
+   * @param offset Offset of the string reference.
+   */
+  private String getString(int offset) {
+    int ref = buffer.getInt(offset);
+    if (ref == NO_STRING)
+      return null;
+    int start = poolOffset + ref;
+    int length = buffer.getShort(start) & 0xffff;
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++)
+      bytes[i] = buffer.get(start + 2 + i);
+    try {
+      return new String(bytes, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Writes an index of <code>pages</code> and <code>changed</code> photos to
+   * <code>file</code>, replacing it atomically.
+   *
+   * @param pages Pages sorted by start index.
+   */
+  public static void write(File file, List<Page> pages,
+      Collection<PicasaPhoto> changed, String highWater, long lastFullListing)
+      throws IOException {
+    StringPool pool = new StringPool();
+
+    HashSet<String> changedIds = new HashSet<String>();
+    for (PicasaPhoto p : changed)
+      changedIds.add(p.getId());
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    DataOutputStream os = new DataOutputStream(body);
+
+    int first = 0;
+    for (Page page : pages) {
+      os.writeInt(page.startIndex);
+      os.writeInt(pool.add(page.etag));
+      os.writeInt(first);
+      os.writeInt(page.photos.size());
+      first += page.photos.size();
+    }
+
+    // Records of pages first, then the changed ones. Photos are only walked
+    // once, as they may be created on the fly, with just the keys of the
+    // current ones held on to for sorting.
+
+    final ArrayList<String> titles = new ArrayList<String>();
+    final ArrayList<String> summaries = new ArrayList<String>();
+    ArrayList<Integer> current = new ArrayList<Integer>();
+    int recordCount = 0;
+    for (int i = 0; i <= pages.size(); i++) {
+      boolean isChanged = i == pages.size();
+      for (PicasaPhoto p : isChanged ? changed : pages.get(i).photos) {
+        writeRecord(os, pool, p);
+        if (isChanged || !changedIds.contains(p.getId())) {
+          current.add(recordCount);
+          titles.add(nonNull(p.title));
+          summaries.add(normalizeSummary(nonNull(p.summary)));
+        } else {
+          titles.add(null);
+          summaries.add(null);
+        }
+        recordCount++;
+      }
+    }
+
+    ArrayList<Integer> byTitle = new ArrayList<Integer>(current);
+    Collections.sort(byTitle, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        int c = titles.get(a).compareTo(titles.get(b));
+        return c != 0 ? c : a.compareTo(b);
+      }
+    });
+    for (int r : byTitle)
+      os.writeInt(r);
+
+    ArrayList<Integer> bySummary = new ArrayList<Integer>(current);
+    Collections.sort(bySummary, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        int c = summaries.get(a).compareTo(summaries.get(b));
+        return c != 0 ? c : a.compareTo(b);
+      }
+    });
+    for (int r : bySummary)
+      os.writeInt(r);
+
+    int highWaterRef = pool.add(highWater);
+    os.write(pool.bytes.toByteArray());
+    os.close();
+
+    File tmpFile = new File(file.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(tmpFile)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(lastFullListing);
+      out.writeInt(highWaterRef);
+      out.writeInt(pages.size());
+      out.writeInt(recordCount);
+      out.writeInt(changed.size());
+      out.writeInt(current.size());
+      out.writeInt(pool.bytes.size());
+      body.writeTo(out);
+      out.close();
+      if (!tmpFile.renameTo(file))
+        throw new IOException("Couldn't replace " + file);
+    } finally {
+      out.close();
+      tmpFile.delete();
+    }
+  }
+
+  private static void writeRecord(DataOutputStream os, StringPool pool,
+      PicasaPhoto p) throws IOException {
+    try {
+      os.writeLong(Long.parseLong(p.getId()));
+    } catch (NumberFormatException e) {
+      throw new IOException("Non-numeric photo ID " + p.getId());
+    }
+    os.writeInt(pool.add(p.getUniqueId()));
+    os.writeInt(pool.add(p.title));
+    os.writeInt(pool.add(p.summary));
+    writeUrl(os, pool, p.getPhotoUrl(), p.getId());
+    writeUrl(os, pool, p.getEditUrl(), p.getId());
+    writeUrl(os, pool, p.getEditMediaUrl(), p.getId());
+    os.writeInt(pool.add(p.getMimeType()));
+    os.writeInt(p.getWidth());
+    os.writeInt(p.getHeight());
+    os.writeInt(pool.add(p.getUpdated()));
+  }
+
+  private static String nonNull(String s) {
+    return s == null ? "" : s;
+  }
+
+  /**
+   * Writes <code>url</code> as a pair of strings, split after its prefix.
+   * 
+   * @see PicasawebService#getUrlPrefixLength(String, String)
+   */
+  private static void writeUrl(DataOutputStream os, StringPool pool,
+      String url, String id) throws IOException {
+    if (url == null) {
+      os.writeInt(NO_STRING);
+      os.writeInt(NO_STRING);
+      return;
+    }
+    int split = PicasawebService.getUrlPrefixLength(url, id);
+    os.writeInt(pool.add(url.substring(0, split)));
+    os.writeInt(pool.add(url.substring(split)));
+  }
+
+  private static class StringPool {
+    private final HashMap<String, Integer> refs = new HashMap<String, Integer>();
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    public int add(String s) throws IOException {
+      if (s == null)
+        return NO_STRING;
+      Integer ref = refs.get(s);
+      if (ref != null)
+        return ref;
+      byte[] encoded = s.getBytes("UTF-8");
+      if (encoded.length > 0xffff)
+        throw new IOException("String too long for server entry index");
+      ref = bytes.size();
+      bytes.write(encoded.length >> 8);
+      bytes.write(encoded.length);
+      bytes.write(encoded);
+      refs.put(s, ref);
+      return ref;
+    }
+  }
+}
@@ -0,0 +1,139 @@
+/**
+ * Streams.java - Stream copying.
+ *
+ * Copyright (C) 2012 Mansour <mansour@oxplot.com>
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.oxplot.contactphotosync;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.LinkedList;
+
+import android.os.ParcelFileDescriptor;
+
+/**
+ * Copies streams, straight between file descriptors where possible (ie
+ * without passing the bytes through the Java heap), and through pooled
+ * buffers otherwise.
+ */
+class Streams {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_POOLED_BUFFERS = 4;
+
+  private static final LinkedList<byte[]> buffers = new LinkedList<byte[]>();
+
+  private Streams() {}
+
+  /**
+   * @see #copy(InputStream, OutputStream, MessageDigest)
+   */
+  public static long copy(InputStream in, OutputStream out) throws IOException {
+    return copy(in, out, null);
+  }
+
+  /**
+   * Copies <code>in</code> to <code>out</code> until the end of
+   * <code>in</code>. Neither stream is closed.
+   *
+   * @param out Stream to copy to or <code>null</code> to discard what's read.
+   * @param digest If not <code>null</code>, it's updated with all the bytes
+   *          copied.
+   * @return Number of bytes copied.
+   */
+  public static long copy(InputStream in, OutputStream out,
+      MessageDigest digest) throws IOException {
+    long total = 0;
+
+    // The channel of a descriptor can only be used if the stream isn't
+    // limited to a section of the file, as is the case for a length bound
+    // asset descriptor.
+
+    if (digest == null && isPlainFile(in) && isPlainFile(out)) {
+      FileChannel inChannel = ((FileInputStream) in).getChannel();
+      FileChannel outChannel = ((FileOutputStream) out).getChannel();
+      long position = inChannel.position();
+      long size = inChannel.size();
+      while (position < size) {
+        long transferred = inChannel.transferTo(position, size - position,
+            outChannel);
+        if (transferred <= 0)
+          break;
+        position += transferred;
+        total += transferred;
+      }
+      inChannel.position(position);
+
+      // Pipes and the like have no size, so whatever remains is copied below.
+    }
+
+    byte[] buffer = obtainBuffer();
+    try {
+      int bytesRead = in.read(buffer);
+      while (bytesRead >= 0) {
+        if (digest != null)
+          digest.update(buffer, 0, bytesRead);
+        if (out != null)
+          out.write(buffer, 0, bytesRead);
+        total += bytesRead;
+        bytesRead = in.read(buffer);
+      }
+    } finally {
+      releaseBuffer(buffer);
+    }
+
+    return total;
+  }
+
+  private static boolean isPlainFile(InputStream in) {
+    if (in == null)
+      return false;
+    Class<?> c = in.getClass();
+    return c == FileInputStream.class
+        || c == ParcelFileDescriptor.AutoCloseInputStream.class;
+  }
+
+  private static boolean isPlainFile(OutputStream out) {
+    if (out == null)
+      return false;
+    Class<?> c = out.getClass();
+    return c == FileOutputStream.class
+        || c == ParcelFileDescriptor.AutoCloseOutputStream.class;
+  }
+
+  private static byte[] obtainBuffer() {
+    synchronized (buffers) {
+      if (!buffers.isEmpty())
+        return buffers.removeFirst();
+    }
+    return new byte[BUFFER_SIZE];
+  }
+
+  private static void releaseBuffer(byte[] buffer) {
+    synchronized (buffers) {
+      if (buffers.size() < MAX_POOLED_BUFFERS)
+        buffers.add(buffer);
+    }
+  }
+}
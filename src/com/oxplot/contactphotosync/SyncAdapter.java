@@ -22,22 +22,33 @@
 package com.oxplot.contactphotosync;
 
 import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
@@ -48,8 +59,8 @@ import android.app.ActivityManager.RunningAppProcessInfo;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
 import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.content.SyncResult;
@@ -58,44 +69,70 @@ import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
-import android.graphics.BitmapFactory;
+import android.database.SQLException;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.GroupMembership;
 import android.provider.ContactsContract.CommonDataKinds.Photo;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.RawContacts;
 import android.util.Log;
+import android.util.SparseArray;
 
+import com.oxplot.contactphotosync.PhotoBufferPool.PhotoBuffer;
+import com.oxplot.contactphotosync.PicasawebService.PhotoHandler;
+import com.oxplot.contactphotosync.PicasawebService.PhotoPageCache;
+import com.oxplot.contactphotosync.PicasawebService.PhotoStore;
 import com.oxplot.contactphotosync.PicasawebService.PicasaAlbum;
 import com.oxplot.contactphotosync.PicasawebService.PicasaAuthException;
 import com.oxplot.contactphotosync.PicasawebService.PicasaPhoto;
+import com.oxplot.contactphotosync.SyncStateDatabase.SyncState;
 
 public class SyncAdapter extends AbstractThreadedSyncAdapter {
 
   private static final String README_TITLE = "acps-readme.png";
   private static final String REMOTE_TITLE_PREFIX = "acps-";
-  public static final String OVERRIDE_TAG = "@*@";
   private static final String MY_CONTACTS_GROUP = "6";
   private static final String PHOTO_DIR = "/files/photos";
   private static final String CONTACT_PROVIDER = "com.android.providers.contacts";
   private static final String TAG = "SyncAdapter";
   private static final String ACCOUNT_TYPE = "com.google";
   private static final int WAIT_TIME_DB = 5000;
-  private static final int WAIT_TIME_INT = 50;
+  private static final long FULL_LISTING_INTERVAL = 24 * 60 * 60 * 1000;
 
   private final int maxPhotoDim;
+  private final int transferThreads;
+  private final int hashThreads;
+  private final PhotoBufferPool photoBuffers;
   private final String picasaReadmeText;
 
   public SyncAdapter(Context context, boolean autoInitialize) {
     super(context, autoInitialize);
     maxPhotoDim = context.getResources().getInteger(
         R.integer.config_max_photo_dim);
+    transferThreads = Math.max(1,
+        context.getResources().getInteger(R.integer.config_transfer_threads));
+    int configHashThreads = context.getResources().getInteger(
+        R.integer.config_hash_threads);
+    hashThreads = configHashThreads > 0 ? configHashThreads : Runtime
+        .getRuntime().availableProcessors();
+    photoBuffers = new PhotoBufferPool(context.getCacheDir(), context
+        .getResources().getInteger(R.integer.config_photo_buffer_threshold),
+        context.getResources().getInteger(
+            R.integer.config_photo_buffer_pool_size));
     picasaReadmeText = String.format(
         context.getResources().getString(R.string.picasaweb_readme),
         maxPhotoDim, maxPhotoDim);
+
+    // The sync adapter has the sync process to itself and is the only one
+    // talking to Picasa, so the process wide connection pool settings are
+    // made here rather than as a side effect of loading the transport.
+
+    PicasaTransport.configureConnectionPool();
   }
 
   private static String toHex(byte[] arr) {
@@ -118,14 +155,7 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
       throw new IOException(e);
     }
 
-    byte[] buffer = new byte[4096];
-    int bytesRead = stream.read(buffer);
-
-    while (bytesRead >= 0) {
-      md5.update(buffer, 0, bytesRead);
-      bytesRead = stream.read(buffer);
-    }
-
+    Streams.copy(stream, null, md5);
     return md5.digest();
 
   }
@@ -146,269 +176,608 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     return sourceId + ".jpg";
   }
 
-  private static class Contact {
-    public int rawContactId;
+  private static class Contact extends SyncState {
     public String displayName;
-    public String localHash;
-    public String remoteHash;
-    public String sourceId;
+    public long photoFileId = -1;
+
+    /**
+     * Length of the local photo, -1 if not known yet.
+     */
+    public long photoLength = -1;
+
+    /**
+     * Records that {@link #localHash} is of the current local photo.
+     */
+    public void setHashed() {
+      hashedFileId = photoFileId;
+      hashedLength = photoLength;
+    }
+
+    public void clearHashed() {
+      hashedFileId = -1;
+      hashedLength = -1;
+    }
+
+    /**
+     * @return <code>true</code> if the local photo hasn't changed since
+     *         {@link #localHash} was taken.
+     */
+    public boolean isHashed() {
+      return hashedFileId >= 0 && hashedFileId == photoFileId
+          && hashedLength >= 0 && hashedLength == photoLength;
+    }
   }
 
+  /**
+   * Columns of the data rows read by {@link #getLocalContacts(String)}. Note
+   * that {@link StructuredName#DISPLAY_NAME} is only meaningful on name rows.
+   */
+  private static final String[] LOCAL_CONTACTS_PROJECTION = new String[] {
+      Data.RAW_CONTACT_ID, Data.MIMETYPE, StructuredName.DISPLAY_NAME,
+      Photo.PHOTO_FILE_ID, RawContacts.SOURCE_ID, RawContacts.SYNC4 };
+
+  /**
+   * Retrieves the raw contacts of the My Contacts group of
+   * <code>account</code>, along with their sync state.
+   */
   private Collection<Contact> getLocalContacts(String account) {
 
     ArrayList<Contact> contacts = new ArrayList<Contact>();
 
-    // Find the group ID of My Contacts group
+    // Get the My Contacts memberships, names and photos of all raw contacts in
+    // one go, along with the raw contact columns joined into each data row.
+    // The group is matched by its source ID, which data rows carry, and rows
+    // of each raw contact are adjacent as they're sorted by raw contact ID.
+    // The name is that of the raw contact itself, not of its aggregate.
 
-    Uri groupsUri = ContactsContract.Groups.CONTENT_URI.buildUpon()
+    Uri contactsUri = ContactsContract.Data.CONTENT_URI.buildUpon()
         .appendQueryParameter(RawContacts.ACCOUNT_NAME, account)
         .appendQueryParameter(RawContacts.ACCOUNT_TYPE, ACCOUNT_TYPE).build();
-    Cursor cursor = getContext().getContentResolver().query(groupsUri, null,
-        null, null, null);
+    Cursor cursor = getContext().getContentResolver().query(
+        contactsUri,
+        LOCAL_CONTACTS_PROJECTION,
+        "(" + Data.MIMETYPE + " = ? AND " + GroupMembership.GROUP_SOURCE_ID
+            + " = ?) OR " + Data.MIMETYPE + " IN (?, ?)",
+        new String[] { GroupMembership.CONTENT_ITEM_TYPE, MY_CONTACTS_GROUP,
+            Photo.CONTENT_ITEM_TYPE, StructuredName.CONTENT_ITEM_TYPE },
+        Data.RAW_CONTACT_ID);
     if (cursor == null)
       return null;
 
-    int myContactGroupId = -1;
+    // Sync state used to be kept in SYNC4 of raw contacts. It's only read for
+    // contacts that have no state in the sync state database yet.
+
+    SparseArray<String> legacyStates = new SparseArray<String>();
 
     try {
-      for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+      int idCol = cursor.getColumnIndex(Data.RAW_CONTACT_ID);
+      int mimeTypeCol = cursor.getColumnIndex(Data.MIMETYPE);
+      int nameCol = cursor.getColumnIndex(StructuredName.DISPLAY_NAME);
+      int fileIdCol = cursor.getColumnIndex(Photo.PHOTO_FILE_ID);
+      int sourceIdCol = cursor.getColumnIndex(RawContacts.SOURCE_ID);
+      int sync4Col = cursor.getColumnIndex(RawContacts.SYNC4);
 
-        String sourceId = cursor.getString(cursor
-            .getColumnIndex(ContactsContract.Groups.SOURCE_ID));
-        if (MY_CONTACTS_GROUP.equals(sourceId)) {
-          myContactGroupId = cursor.getInt(cursor
-              .getColumnIndex(ContactsContract.Groups._ID));
-          break;
+      Contact c = null;
+      String sync4 = null;
+      boolean member = false;
+
+      for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+        int id = cursor.getInt(idCol);
+        if (c == null || c.rawContactId != id) {
+          if (member) {
+            contacts.add(c);
+            legacyStates.put(c.rawContactId, sync4);
+          }
+          member = false;
+          c = new Contact();
+          c.rawContactId = id;
+          c.sourceId = cursor.getString(sourceIdCol);
+          sync4 = cursor.getString(sync4Col);
         }
+        String mimeType = cursor.getString(mimeTypeCol);
+        if (Photo.CONTENT_ITEM_TYPE.equals(mimeType)) {
+          if (!cursor.isNull(fileIdCol))
+            c.photoFileId = cursor.getLong(fileIdCol);
+        } else if (StructuredName.CONTENT_ITEM_TYPE.equals(mimeType)) {
+          c.displayName = cursor.getString(nameCol);
+        } else {
+          member = true;
+        }
+      }
+      if (member) {
+        contacts.add(c);
+        legacyStates.put(c.rawContactId, sync4);
       }
+
     } finally {
       cursor.close();
     }
 
-    if (myContactGroupId < 0)
-      return null;
+    SyncStateDatabase.getInstance(getContext()).load(account, contacts);
+    for (Contact contact : contacts) {
+      String sync4 = legacyStates.get(contact.rawContactId);
+      if (contact.stored || sync4 == null)
+        continue;
+      String[] sync4Parts = (sync4 + ":").split("[:]", -1);
+      contact.remoteHash = sync4Parts[0];
+      contact.localHash = sync4Parts[1];
+    }
 
-    // Get the list of contacts in My Contacts group
+    return contacts;
+  }
 
-    Uri contactsUri = ContactsContract.Data.CONTENT_URI.buildUpon()
-        .appendQueryParameter(RawContacts.ACCOUNT_NAME, account)
-        .appendQueryParameter(RawContacts.ACCOUNT_TYPE, ACCOUNT_TYPE).build();
-    cursor = getContext().getContentResolver().query(contactsUri,
-        new String[] { GroupMembership.RAW_CONTACT_ID },
-        GroupMembership.GROUP_ROW_ID + " = " + myContactGroupId, null, null);
+  @Override
+  public void onPerformSync(Account account, Bundle extras, String authority,
+      ContentProviderClient provider, SyncResult syncResult) {
 
-    if (cursor == null)
-      return null;
+    // Let's see if the user is willing to give us root permission at the very
+    // start
 
-    HashSet<Integer> ids = new HashSet<Integer>();
+    Util.runRoot("");
+
+    // The root shell is kept open for the rest of the sync so that photos can
+    // be replaced without asking for root again.
 
     try {
-      if (!cursor.moveToFirst())
-        return contacts;
-      do {
-        ids.add(cursor.getInt(cursor
-            .getColumnIndex(GroupMembership.RAW_CONTACT_ID)));
-      } while (cursor.moveToNext());
+
+      // Get the authentication token for the given account, invalidate it and
+      // get another one as to avoid the headache of dealing with an expired
+      // token.
+
+      String authToken;
+      AccountManager manager = AccountManager.get(getContext());
+
+      try {
+        authToken = manager.blockingGetAuthToken(account,
+            PicasawebService.PW_SERVICE_NAME, true);
+        manager.invalidateAuthToken(ACCOUNT_TYPE, authToken);
+        authToken = manager.blockingGetAuthToken(account,
+            PicasawebService.PW_SERVICE_NAME, true);
+      } catch (OperationCanceledException e) {
+        syncResult.stats.numAuthExceptions++;
+        return;
+      } catch (AuthenticatorException e) {
+        syncResult.stats.numAuthExceptions++;
+        return;
+      } catch (IOException e) {
+        syncResult.stats.numIoExceptions++;
+        return;
+      }
+
+      // Syncs requested by the user always get a full listing of the album, the
+      // periodic ones only ask for what has changed since the last one.
+
+      boolean incremental = !extras.getBoolean(
+          ContentResolver.SYNC_EXTRAS_MANUAL, false);
+
+      try {
+        performSyncAuthWrapped(account, authority, syncResult, authToken,
+            incremental);
+      } catch (PicasaAuthException e) {
+        System.err.println(e);
+        syncResult.stats.numAuthExceptions++;
+        return;
+      } catch (IOException e) {
+        System.err.println(e);
+        syncResult.stats.numIoExceptions++;
+        return;
+      } catch (InterruptedException e) {
+        Log.w(TAG, "Sync was interrupted by killing the thread");
+      }
     } finally {
-      cursor.close();
+      RootShell.getInstance().close();
     }
+  }
 
-    // Get the rest of raw contact data
+  /**
+   * Pages of the album feed as last seen on the server, backed by the server
+   * entry index stored by the previous sync. Pages that are requested during
+   * the current sync (either fetched fresh or confirmed unchanged) are the
+   * only ones stored back to disk after a full listing. Photos picked up by
+   * incremental listings since the last full listing are kept on the side and
+   * take precedence over their copies in the pages.
+   */
+  private static class ServerEntryCache implements PhotoPageCache {
+
+    private final PicasaAlbum album;
+    private final ServerEntryIndex index;
+    private final PhotoStore store;
+    private final TreeMap<Integer, ServerEntryIndex.Page> seen = new TreeMap<Integer, ServerEntryIndex.Page>();
+    private final LinkedHashMap<String, PicasaPhoto> changed = new LinkedHashMap<String, PicasaPhoto>();
+    private String highWater;
+    private long lastFullListing;
+
+    /**
+     * @param index Index stored by the previous sync or <code>null</code> if
+     *          there is none.
+     * @param store Store the photos listed from the server are added to, in
+     *          the order they're listed, before their page is
+     *          {@link #put(int, String, List)}.
+     */
+    public ServerEntryCache(PicasaAlbum album, ServerEntryIndex index,
+        PhotoStore store) {
+      this.album = album;
+      this.index = index;
+      this.store = store;
+      highWater = index == null ? "" : index.getHighWater();
+      lastFullListing = index == null ? 0 : index.getLastFullListing();
+    }
 
-    Uri rawContactsUri = RawContacts.CONTENT_URI.buildUpon()
-        .appendQueryParameter(RawContacts.ACCOUNT_NAME, account)
-        .appendQueryParameter(RawContacts.ACCOUNT_TYPE, ACCOUNT_TYPE).build();
-    cursor = getContext().getContentResolver().query(
-        rawContactsUri,
-        new String[] { RawContacts._ID, RawContacts.SOURCE_ID,
-            RawContacts.SYNC4, RawContacts.DISPLAY_NAME_PRIMARY }, null, null,
-        null);
-    if (cursor == null)
-      return null;
-    try {
-      if (!cursor.moveToFirst())
-        return contacts;
-      do {
-        int id = cursor.getInt(cursor.getColumnIndex(RawContacts._ID));
-        if (ids.contains(id)) {
-          Contact c = new Contact();
-          c.rawContactId = id;
-          c.sourceId = cursor.getString(cursor
-              .getColumnIndex(RawContacts.SOURCE_ID));
-          c.displayName = cursor.getString(cursor
-              .getColumnIndex(RawContacts.DISPLAY_NAME_PRIMARY));
-          String sync4 = cursor.getString(cursor
-              .getColumnIndex(RawContacts.SYNC4));
-          sync4 = sync4 == null ? "" : sync4;
-          String[] sync4Parts = (sync4 + ":").split("[:]", -1);
-          c.remoteHash = sync4Parts[0];
-          c.localHash = sync4Parts[1];
-          contacts.add(c);
-        }
-      } while (cursor.moveToNext());
+    @Override
+    public String getETag(int startIndex) {
+      int page = index == null ? -1 : index.findPage(startIndex);
+      return page < 0 ? null : index.getPageETag(page);
+    }
 
-    } finally {
-      cursor.close();
+    @Override
+    public int replay(int startIndex, PhotoHandler handler) throws IOException {
+      ServerEntryIndex.Page page = index.getPage(index.findPage(startIndex),
+          album);
+      seen.put(startIndex, page);
+      for (PicasaPhoto p : page.photos)
+        handler.onPhoto(p);
+      return page.photos.size();
     }
 
-    return contacts;
+    /**
+     * Keeps the page as a view of the rows its photos were added to the store
+     * as, i.e. the last ones added.
+     */
+    @Override
+    public void put(int startIndex, String etag, List<PicasaPhoto> photos) {
+      ServerEntryIndex.Page page = new ServerEntryIndex.Page();
+      page.startIndex = startIndex;
+      page.etag = etag;
+      page.photos = store.getRange(store.size() - photos.size(),
+          photos.size());
+      seen.put(startIndex, page);
+    }
+
+    /**
+     * Stores the pages seen by a full listing to <code>path</code>.
+     */
+    public void storeFull(File path) throws IOException {
+      ServerEntryIndex.write(path, new ArrayList<ServerEntryIndex.Page>(
+          seen.values()), changed.values(), highWater, lastFullListing);
+    }
+
+    /**
+     * Stores the photos listed by an incremental listing to
+     * <code>path</code>, along with the pages and changed photos already in
+     * the index. The index is left as is if nothing has changed.
+     */
+    public void storeIncremental(File path) throws IOException {
+      if (changed.isEmpty() && highWater.equals(index.getHighWater()))
+        return;
+      ArrayList<ServerEntryIndex.Page> pages = new ArrayList<ServerEntryIndex.Page>();
+      for (int i = 0; i < index.getPageCount(); i++)
+        pages.add(index.getPage(i, album));
+      LinkedHashMap<String, PicasaPhoto> allChanged = new LinkedHashMap<String, PicasaPhoto>();
+      for (PicasaPhoto p : index.getChanged(album))
+        allChanged.put(p.getId(), p);
+      for (PicasaPhoto p : changed.values()) {
+        allChanged.remove(p.getId());
+        allChanged.put(p.getId(), p);
+      }
+      ServerEntryIndex.write(path, pages, allChanged.values(), highWater,
+          lastFullListing);
+    }
   }
 
-  @Override
-  public void onPerformSync(Account account, Bundle extras, String authority,
-      ContentProviderClient provider, SyncResult syncResult) {
+  private boolean isUsablePhoto(PicasaPhoto p) {
+    return "image/jpeg".equals(p.getMimeType())
+        && p.getWidth() == p.getHeight() && p.getWidth() <= maxPhotoDim
+        && p.getHeight() <= maxPhotoDim;
+  }
 
-    // Let's see if the user is willing to give us root permission at the very
-    // start
+  private static boolean isReadme(PicasaPhoto p) {
+    return "image/png".equals(p.getMimeType()) && README_TITLE.equals(p.title);
+  }
 
-    Util.runRoot("");
+  /**
+   * Server photos that may stand for contacts, looked up by title or by
+   * normalized summary (i.e. the contact name they were uploaded for).
+   * Photos listed during this sync are held in a compact {@link PhotoStore}.
+   * The rest, if any, are looked up in the server entry index of the previous
+   * sync as needed, so that an incremental sync doesn't load the whole album
+   * up front. Either way, a {@link PicasaPhoto} is only created for a photo
+   * that's looked up.
+   */
+  private class ServerEntries {
+
+    private final ServerEntryIndex index;
+    private final PicasaAlbum album;
+    private final PhotoStore store;
+
+    /**
+     * Rows of the store by normalized summary, each key mapped to the first
+     * and last row in a chain linked through {@link #summaryNext}. Rows are
+     * chained in the order they're put so that, of photos with the same
+     * summary, the first one listed wins.
+     */
+    private final HashMap<String, Integer> summaryHeads = new HashMap<String, Integer>();
+    private final HashMap<String, Integer> summaryTails = new HashMap<String, Integer>();
+    private int[] summaryNext = new int[64];
+
+    /**
+     * IDs of photos in the index which have been superseded by photos in
+     * memory.
+     */
+    private final HashSet<String> hidden = new HashSet<String>();
+
+    /**
+     * @param index Index to fall back on or <code>null</code> if all photos
+     *          are to be {@link #put(PicasaPhoto)} in memory.
+     */
+    public ServerEntries(ServerEntryIndex index, PicasaAlbum album,
+        PhotoStore store) {
+      this.index = index;
+      this.album = album;
+      this.store = store;
+    }
 
-    // Get the authentication token for the given account, invalidate it and get
-    // another one as to avoid the headache of dealing with an expired token.
+    public PicasaPhoto get(String title) {
+      int row = store.findByTitle(title);
+      if (row >= 0)
+        return store.get(row);
+      if (index == null)
+        return null;
 
-    String authToken;
-    AccountManager manager = AccountManager.get(getContext());
+      // Of photos with the same title, the last one listed wins
 
-    try {
-      authToken = manager.blockingGetAuthToken(account,
-          PicasawebService.PW_SERVICE_NAME, true);
-      manager.invalidateAuthToken(ACCOUNT_TYPE, authToken);
-      authToken = manager.blockingGetAuthToken(account,
-          PicasawebService.PW_SERVICE_NAME, true);
-    } catch (OperationCanceledException e) {
-      syncResult.stats.numAuthExceptions++;
-      return;
-    } catch (AuthenticatorException e) {
-      syncResult.stats.numAuthExceptions++;
-      return;
-    } catch (IOException e) {
-      syncResult.stats.numIoExceptions++;
-      return;
+      int[] records = index.findByTitle(title);
+      for (int i = records.length - 1; i >= 0; i--) {
+        PicasaPhoto p = getIndexed(records[i]);
+        if (p != null && isUsablePhoto(p))
+          return p;
+      }
+      return null;
     }
 
-    File tempPhotoPath = null;
+    public PicasaPhoto getBySummary(String summary) {
+      String key = ServerEntryIndex.normalizeSummary(summary);
+      Integer row = summaryHeads.get(key);
+      if (row != null)
+        return store.get(row);
+      if (index == null)
+        return null;
+      for (int record : index.findBySummary(key)) {
+        PicasaPhoto p = getIndexed(record);
+        if (p != null && isUsablePhoto(p))
+          return p;
+      }
+      return null;
+    }
 
-    try {
-      tempPhotoPath = File.createTempFile("syncltr", "", getContext()
-          .getCacheDir());
-      performSyncAuthWrapped(account, authority, syncResult, authToken,
-          tempPhotoPath);
-    } catch (PicasaAuthException e) {
-      System.err.println(e);
-      syncResult.stats.numAuthExceptions++;
-      return;
-    } catch (IOException e) {
-      System.err.println(e);
-      syncResult.stats.numIoExceptions++;
-      return;
-    } catch (InterruptedException e) {
-      Log.w(TAG, "Sync was interrupted by killing the thread");
-    } finally {
-      if (tempPhotoPath != null)
-        tempPhotoPath.delete();
+    /**
+     * @return The readme photo if it's in the index, <code>null</code>
+     *         otherwise.
+     */
+    public PicasaPhoto getIndexedReadme() {
+      if (index == null)
+        return null;
+      int[] records = index.findByTitle(README_TITLE);
+      for (int i = records.length - 1; i >= 0; i--) {
+        PicasaPhoto p = getIndexed(records[i]);
+        if (p != null && isReadme(p))
+          return p;
+      }
+      return null;
     }
-  }
 
-  private Hashtable<String, PicasaPhoto> retrieveServerEntriesFromCache(
-      PicasaAlbum album, File path) throws IOException {
-    DataInputStream is = null;
-    Hashtable<String, PicasaPhoto> entries = new Hashtable<String, PicasaPhoto>();
-    try {
-      is = new DataInputStream(new FileInputStream(path));
-      while (true) {
-        PicasaPhoto p = album.deserializePhoto(is);
-        if (p == null)
-          break;
-        entries.put(p.title, p);
+    /**
+     * Adds <code>photo</code>, superseding any other photo with the same
+     * title or ID.
+     */
+    public void put(PicasaPhoto photo) throws IOException {
+      put(store.add(photo));
+    }
+
+    /**
+     * Same as {@link #put(PicasaPhoto)} for a photo already in the store.
+     */
+    public void put(int row) {
+      int old = store.indexTitle(row);
+      if (old >= 0)
+        unindexSummary(old);
+      if (row >= summaryNext.length)
+        summaryNext = Arrays.copyOf(summaryNext,
+            Math.max(row + 1, summaryNext.length * 2));
+      String key = summaryKey(row);
+      Integer tail = summaryTails.get(key);
+      if (tail == null)
+        summaryHeads.put(key, row);
+      else
+        summaryNext[tail] = row;
+      summaryNext[row] = -1;
+      summaryTails.put(key, row);
+      hidden.add(store.getId(row));
+    }
+
+    public void remove(PicasaPhoto photo) {
+      int row = store.findByTitle(photo.title);
+      if (row >= 0 && store.getId(row).equals(photo.getId())) {
+        store.unindexTitle(row);
+        unindexSummary(row);
       }
-    } finally {
-      if (is != null)
-        try {
-          is.close();
-        } catch (IOException e) {}
+      hidden.add(photo.getId());
+    }
+
+    /**
+     * Hides the photo with <code>id</code> in the index, if any.
+     */
+    public void hide(String id) {
+      hidden.add(id);
+    }
+
+    private PicasaPhoto getIndexed(int record) {
+      return hidden.contains(index.getId(record)) ? null : index.getPhoto(
+          record, album);
+    }
+
+    private void unindexSummary(int row) {
+      String key = summaryKey(row);
+      Integer head = summaryHeads.get(key);
+      if (head == null)
+        return;
+      int prev = -1;
+      for (int r = head; r != row; r = summaryNext[r]) {
+        if (r < 0)
+          return;
+        prev = r;
+      }
+      int next = summaryNext[row];
+      if (prev < 0) {
+        if (next < 0)
+          summaryHeads.remove(key);
+        else
+          summaryHeads.put(key, next);
+      } else {
+        summaryNext[prev] = next;
+      }
+      if (next < 0) {
+        if (prev < 0)
+          summaryTails.remove(key);
+        else
+          summaryTails.put(key, prev);
+      }
+    }
+
+    private String summaryKey(int row) {
+      return ServerEntryIndex.normalizeSummary(store.getSummary(row));
     }
-    return entries;
   }
 
-  private void storeServerEntriesToCache(Collection<PicasaPhoto> photos,
-      File path) throws IOException {
-    File tmpPath = null;
-    DataOutputStream os = null;
-    try {
-      tmpPath = File.createTempFile("storeentriestmp-", "", getContext()
-          .getCacheDir());
-      os = new DataOutputStream(new FileOutputStream(tmpPath));
-      for (PicasaPhoto p : photos)
-        p.serialize(os);
-      os.close();
-      tmpPath.renameTo(path);
-    } finally {
-      if (os != null)
-        try {
-          os.close();
-        } catch (IOException e) {}
-      if (tmpPath != null)
-        tmpPath.delete();
+  /**
+   * Sorts out photos of the album as they are streamed from the server, page
+   * by page. Photos are keyed by title so a page that is fetched again after a
+   * failure is folded in harmlessly.
+   */
+  private class ServerEntryCollector implements PhotoHandler {
+    public final ServerEntries entries;
+    private final PhotoStore store;
+    public PicasaPhoto readmeEntry;
+    public String highWater = "";
+
+    public ServerEntryCollector(ServerEntries entries, PhotoStore store) {
+      this.entries = entries;
+      this.store = store;
+    }
+
+    /**
+     * Adds every photo listed to the store, whether it's usable or not, so
+     * that the rows of the store follow the pages of the listing.
+     */
+    @Override
+    public void onPhoto(PicasaPhoto p) throws IOException {
+      if (p.getUpdated().compareTo(highWater) > 0)
+        highWater = p.getUpdated();
+      int row = store.add(p);
+      entries.hide(p.getId());
+      if (isReadme(p)) {
+        readmeEntry = p;
+        return;
+      }
+      if (!isUsablePhoto(p)) {
+        Log.d(TAG, "Ignored " + p.title + " due to failing img req.");
+        return;
+      }
+      entries.put(row);
     }
   }
 
-  private Hashtable<String, PicasaPhoto> retrieveServerEntries(String account,
-      PicasawebService pws, PicasaAlbum album) throws IOException,
-      PicasaAuthException {
-    Hashtable<String, PicasaPhoto> finalEntries;
+  /**
+   * Retrieves the photos in the album. If <code>incremental</code> is set and
+   * a full listing was done recently enough, only photos updated since the
+   * last sync are requested, and the rest are looked up in the cached index
+   * as needed. Since incremental listings don't report deletions, a full
+   * (ETag validated) listing is still done every
+   * {@link #FULL_LISTING_INTERVAL}.
+   */
+  private ServerEntries retrieveServerEntries(String account,
+      PicasawebService pws, PicasaAlbum album, boolean incremental)
+      throws IOException, PicasaAuthException {
 
     String accNameHash = toHex(toMD5(account));
-    String tsHash = toHex(toMD5(album.getUpdated()));
+    String albumHash = toHex(toMD5(album.getId()));
     String baseName = "serverentries-" + accNameHash + "-";
-    File cachePath = new File(getContext().getCacheDir(), baseName + tsHash);
-
-    // XXX Unfortunately the timestamp on album entry doesn't change for trivial
-    // edits to photos (e.g. edit of summary text) so we have to request a fresh
-    // list for the time being.
-    if (false && cachePath.exists()) {
-      Log.d(TAG, "Loaded server entries from cache.");
-      finalEntries = retrieveServerEntriesFromCache(album, cachePath);
-    } else {
-      Log.d(TAG, "Loading server entries fresh.");
-
-      for (File f : getContext().getCacheDir().listFiles())
-        if (f.getName().startsWith(baseName))
-          f.delete();
-
-      PicasaPhoto readmeEntry = null;
-      finalEntries = new Hashtable<String, PicasaPhoto>();
-      for (PicasaPhoto p : album.listPhotos()) {
-        if ("image/png".equals(p.getMimeType()) && README_TITLE.equals(p.title)) {
-          readmeEntry = p;
-          continue;
-        }
-        if (!"image/jpeg".equals(p.getMimeType())
-            || p.getWidth() != p.getHeight() || p.getWidth() > maxPhotoDim
-            || p.getHeight() > maxPhotoDim) {
-          Log.d(TAG, "Ignored " + p.title + " due to failing img req.");
-          continue;
-        }
-        finalEntries.put(p.title, p);
-      }
+    File cachePath = new File(getContext().getCacheDir(), baseName + albumHash);
+
+    for (File f : getContext().getCacheDir().listFiles())
+      if (f.getName().startsWith(baseName) && !f.equals(cachePath))
+        f.delete();
 
-      if (readmeEntry == null) {
-        readmeEntry = album.createPhoto();
-        Log.d(TAG, "Readme photo is missing. Adding it.");
+    // The album's updated timestamp doesn't change for trivial edits to photos
+    // (e.g. edit of summary text) so each cached page is validated against the
+    // server with its ETag instead.
+
+    ServerEntryIndex index = null;
+    if (cachePath.exists())
+      try {
+        index = ServerEntryIndex.open(cachePath);
+      } catch (IOException e) {
+        Log.w(TAG, "Discarding unreadable server entries cache: "
+            + e.getMessage());
       }
-      if (!picasaReadmeText.equals(readmeEntry.summary)) {
-        Log.d(TAG, "Readme photo has wrong summary.");
-        readmeEntry.title = README_TITLE;
-        readmeEntry.summary = picasaReadmeText;
-        InputStream is = getContext().getResources().openRawResource(
-            R.drawable.readme);
-        readmeEntry.setPhotoStream(is);
+    // Photos listed from the server are held once, in a store shared by the
+    // cache pages and the entries looked up by the sync.
+    PhotoStore store = new PhotoStore(album);
+    final ServerEntryCache cache = new ServerEntryCache(album, index, store);
+    Log.d(TAG, "Loaded " + (index == null ? 0 : index.getPageCount())
+        + " server entry pages from cache.");
+
+    long now = System.currentTimeMillis();
+    incremental = incremental && index != null
+        && cache.highWater.length() > 0
+        && now - cache.lastFullListing < FULL_LISTING_INTERVAL
+        && now >= cache.lastFullListing;
+
+    final ServerEntryCollector collector = new ServerEntryCollector(
+        new ServerEntries(incremental ? index : null, album, store), store);
+    if (incremental) {
+      Log.d(TAG, "Listing server entries updated since " + cache.highWater);
+      album.listPhotos(new PhotoHandler() {
+        @Override
+        public void onPhoto(PicasaPhoto p) throws IOException {
+          cache.changed.remove(p.getId());
+          cache.changed.put(p.getId(), p);
+          collector.onPhoto(p);
+        }
+      }, cache.highWater);
+      if (collector.highWater.compareTo(cache.highWater) > 0)
+        cache.highWater = collector.highWater;
+      cache.storeIncremental(cachePath);
+      if (collector.readmeEntry == null)
+        collector.readmeEntry = collector.entries.getIndexedReadme();
+    } else {
+      album.listPhotos(collector, cache);
+      cache.highWater = collector.highWater;
+      cache.lastFullListing = now;
+      cache.storeFull(cachePath);
+    }
+
+    PicasaPhoto readmeEntry = collector.readmeEntry;
+    if (readmeEntry == null) {
+      readmeEntry = album.createPhoto();
+      Log.d(TAG, "Readme photo is missing. Adding it.");
+    }
+    if (!picasaReadmeText.equals(readmeEntry.summary)) {
+      Log.d(TAG, "Readme photo has wrong summary.");
+      readmeEntry.title = README_TITLE;
+      readmeEntry.summary = picasaReadmeText;
+      AssetFileDescriptor fd = getContext().getResources().openRawResourceFd(
+          R.drawable.readme);
+      InputStream is = fd.createInputStream();
+      try {
+        readmeEntry.setPhotoStream(is, fd.getLength());
         readmeEntry.save();
+      } finally {
         is.close();
+        fd.close();
       }
-
-      storeServerEntriesToCache(finalEntries.values(), cachePath);
     }
-    return finalEntries;
+
+    return collector.entries;
   }
 
   private PicasaAlbum ensureAlbumExists(PicasawebService pws)
@@ -439,67 +808,230 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     return album.save();
   }
 
-  private String makeCopyInCache(int rawContactId, File tempPhoto)
-      throws IOException {
-    MessageDigest md5 = null;
-    try {
-      md5 = MessageDigest.getInstance("MD5");
-    } catch (NoSuchAlgorithmException e) {}
+  private static final ThreadLocal<MessageDigest> md5Digests = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("MD5");
+      } catch (NoSuchAlgorithmException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  };
 
-    Uri rawContactPhotoUri = Uri.withAppendedPath(
-        ContentUris.withAppendedId(RawContacts.CONTENT_URI, rawContactId),
-        RawContacts.DisplayPhoto.CONTENT_DIRECTORY);
+  private static final ThreadLocal<ByteBuffer> hashBuffers = new ThreadLocal<ByteBuffer>() {
+    @Override
+    protected ByteBuffer initialValue() {
+      return ByteBuffer.allocate(64 * 1024);
+    }
+  };
+
+  /**
+   * Local photo of a contact as found by a {@link HashTask}.
+   */
+  private static class LocalPhoto {
+
+    public boolean exists;
+    public String hash = "";
+
+    /**
+     * <code>true</code> if the hash was computed from the photo rather than
+     * reused.
+     */
+    public boolean rehashed;
+    public boolean complete;
+
+    /**
+     * Copy of the photo, only kept if it differs from the one last synced.
+     */
+    public PhotoBuffer copy;
+  }
 
-    AssetFileDescriptor fd;
-    try {
-      fd = getContext().getContentResolver().openAssetFileDescriptor(
-          rawContactPhotoUri, "r");
-    } catch (FileNotFoundException e) {
-      return null;
+  /**
+   * Finds the hash of the local photo of a contact. Hash tasks of many
+   * contacts run in parallel, each thread with its own digest.
+   */
+  private class HashTask implements Callable<LocalPhoto> {
+
+    private final Contact contact;
+
+    public HashTask(Contact contact) {
+      this.contact = contact;
     }
 
-    InputStream is = null;
-    OutputStream os = null;
-    try {
-      is = fd.createInputStream();
-      os = new FileOutputStream(tempPhoto);
+    @Override
+    public LocalPhoto call() throws IOException {
+      LocalPhoto photo = new LocalPhoto();
+
+      // A raw contact without a photo file has no display photo.
+
+      boolean upload = (contact.pending & SyncStateDatabase.PENDING_UPLOAD)
+          != 0;
+      if (contact.photoFileId < 0)
+        return photo;
 
-      byte[] buffer = new byte[4096];
-      int bytesRead = is.read(buffer);
-      while (bytesRead >= 0) {
-        md5.update(buffer, 0, bytesRead);
-        os.write(buffer, 0, bytesRead);
-        bytesRead = is.read(buffer);
+      Uri rawContactPhotoUri = Uri.withAppendedPath(
+          ContentUris.withAppendedId(RawContacts.CONTENT_URI,
+              contact.rawContactId),
+          RawContacts.DisplayPhoto.CONTENT_DIRECTORY);
+
+      AssetFileDescriptor fd;
+      try {
+        fd = getContext().getContentResolver().openAssetFileDescriptor(
+            rawContactPhotoUri, "r");
+      } catch (FileNotFoundException e) {
+        return photo;
       }
 
-    } finally {
-      if (is != null)
+      try {
+        photo.exists = true;
+
+        // Only read and hash the local photo if it may have changed since the
+        // last time it was hashed. Its length is known without reading it.
+
+        contact.photoLength = getLength(fd);
+        if (contact.isHashed() && !upload) {
+          photo.hash = contact.localHash;
+          return photo;
+        }
+        photo.rehashed = true;
+
+        // A photo that turns out to be unchanged needn't be copied, so hash
+        // it straight off its file first.
+
+        MessageDigest md5 = md5Digests.get();
+        md5.reset();
+        if (!upload && hashFile(fd, md5)) {
+          photo.hash = toHex(md5.digest());
+          if (photo.hash.equals(contact.localHash))
+            return photo;
+        }
+
+        // Copy the photo, hashing and validating it on the way, all in a
+        // single read of the photo.
+
+        md5.reset();
+        photo.copy = photoBuffers.obtain();
+        TeeInputStream is = new TeeInputStream(fd.createInputStream(),
+            photo.copy, md5);
         try {
-          is.close();
-        } catch (IOException e) {}
-      if (os != null)
+          ImageInfo info = ImageInfo.read(is, true);
+          photo.complete = info != null && info.complete;
+          is.drain();
+        } finally {
+          try {
+            is.close();
+          } catch (IOException e) {}
+          photo.copy.close();
+        }
+        photo.hash = toHex(md5.digest());
+        return photo;
+
+      } catch (IOException e) {
+        if (photo.copy != null)
+          photo.copy.release();
+        throw e;
+      } finally {
         try {
-          os.close();
+          fd.close();
         } catch (IOException e) {}
+      }
     }
+  }
 
-    return toHex(md5.digest());
+  /**
+   * @return Length of the photo in <code>fd</code> or -1 if unknown (e.g.
+   *         it's a pipe).
+   */
+  private static long getLength(AssetFileDescriptor fd) {
+    long length = fd.getLength();
+    if (length != AssetFileDescriptor.UNKNOWN_LENGTH)
+      return length;
+    try {
+      length = new FileInputStream(fd.getFileDescriptor()).getChannel()
+          .size() - fd.getStartOffset();
+      return length > 0 ? length : -1;
+    } catch (IOException e) {
+      return -1;
+    }
+  }
 
+  /**
+   * Updates <code>md5</code> with the content of <code>fd</code>, read off its
+   * channel into a buffer reused by the hashing thread.
+   * 
+   * @return <code>false</code> if <code>fd</code> can't be read that way
+   *         (e.g. is a pipe) or reading fails, leaving <code>md5</code> to be
+   *         reset.
+   */
+  private static boolean hashFile(AssetFileDescriptor fd, MessageDigest md5) {
+    try {
+      FileChannel channel = new FileInputStream(fd.getFileDescriptor())
+          .getChannel();
+      long position = fd.getStartOffset();
+      long length = fd.getDeclaredLength();
+      if (length < 0)
+        length = channel.size() - position;
+      if (length <= 0)
+        return false;
+      long end = position + length;
+      ByteBuffer buffer = hashBuffers.get();
+      while (position < end) {
+        buffer.clear();
+        if (end - position < buffer.capacity())
+          buffer.limit((int) (end - position));
+        int bytesRead = channel.read(buffer, position);
+        if (bytesRead <= 0)
+          return false;
+        buffer.flip();
+        md5.update(buffer);
+        position += bytesRead;
+      }
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
   }
 
-  private boolean updateLocalMeta(Contact contact) {
-    ContentValues updateVals = new ContentValues();
-    String selectionClause = RawContacts._ID + " = ?";
-    String[] selectionArgs = new String[] { Long.toString(contact.rawContactId) };
-    updateVals.put(RawContacts.SYNC4, contact.remoteHash + ":"
-        + contact.localHash);
-    return getContext().getContentResolver().update(RawContacts.CONTENT_URI,
-        updateVals, selectionClause, selectionArgs) > 0;
+  /**
+   * Gathers sync state updates of contacts and commits them to the sync state
+   * database in batches, one transaction per batch.
+   */
+  private static class LocalMetaWriter {
+
+    private static final int BATCH_SIZE = 100;
+
+    private final SyncStateDatabase db;
+    private final String account;
+    private final ArrayList<Contact> contacts = new ArrayList<Contact>();
+
+    public LocalMetaWriter(SyncStateDatabase db, String account) {
+      this.db = db;
+      this.account = account;
+    }
+
+    public void add(Contact contact) {
+      contacts.add(contact);
+      if (contacts.size() >= BATCH_SIZE)
+        flush();
+    }
+
+    public void flush() {
+      if (contacts.isEmpty())
+        return;
+      try {
+        db.save(account, contacts);
+      } catch (SQLException e) {
+        Log.e(TAG, "Couldn't update local meta of " + contacts.size()
+            + " contacts: " + e.getMessage());
+      } finally {
+        contacts.clear();
+      }
+    }
   }
 
-  private PicasaPhoto getRemoteEntry(
-      Hashtable<String, PicasaPhoto> serverEntries, Contact contact)
-      throws PicasaAuthException, IOException {
+  private PicasaPhoto getRemoteEntry(ServerEntries serverEntries,
+      Contact contact) throws PicasaAuthException, IOException {
     PicasaPhoto picked = serverEntries
         .get(sourceIdToFilename(contact.sourceId));
     if (picked != null)
@@ -509,142 +1041,338 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     if (picked != null) {
       Log.d(TAG, "Old style picture for " + contact.displayName + "("
           + contact.sourceId + ") found.");
+      serverEntries.remove(picked);
       picked.title = sourceIdToFilename(contact.sourceId);
       picked = picked.save();
-      serverEntries.put(picked.title, picked);
+      serverEntries.put(picked);
       return picked;
     }
     if (contact.displayName == null)
       return null;
-    // XXX the worst way of doing this, need a hashtable or something
-    String contactName = contact.displayName.trim().toLowerCase();
-    for (PicasaPhoto p : serverEntries.values()) {
-      if (p.summary.trim().toLowerCase().equals(contactName)) {
-        serverEntries.remove(p.title);
-        p.title = sourceIdToFilename(contact.sourceId);
-        p = p.save();
-        serverEntries.put(p.title, p);
-        return p;
-      }
-    }
-    return null;
+    PicasaPhoto p = serverEntries.getBySummary(contact.displayName);
+    if (p == null)
+      return null;
+    serverEntries.remove(p);
+    p.title = sourceIdToFilename(contact.sourceId);
+    p = p.save();
+    serverEntries.put(p);
+    return p;
+  }
+
+  /**
+   * Photo transfer of a single contact in either direction. Transfers run on
+   * the transfer executor and only ever touch their own contact and temp
+   * file. Their outcome (local meta and sync stats) is applied by the sync
+   * thread, in the same order the contacts were queued.
+   */
+  private class Transfer implements Callable<Void> {
+
+    private final String account;
+    private final PicasaAlbum album;
+    private final Contact contact;
+    private final PhotoBuffer localPhoto;
+    private final String localHash;
+    private final boolean localPhotoComplete;
+    private final boolean upload;
+    private final AtomicBoolean useRootMethod;
+    private PicasaPhoto remotePhoto;
+
+    public boolean metaUpdated;
+    public boolean inserted;
+    public boolean updated;
+    public boolean localSaved;
+
+    public Transfer(String account, PicasaAlbum album, Contact contact,
+        PicasaPhoto remotePhoto, PhotoBuffer localPhoto, String localHash,
+        boolean localPhotoComplete, boolean upload,
+        AtomicBoolean useRootMethod) {
+      this.account = account;
+      this.album = album;
+      this.contact = contact;
+      this.remotePhoto = remotePhoto;
+      this.localPhoto = localPhoto;
+      this.localHash = localHash;
+      this.localPhotoComplete = localPhotoComplete;
+      this.upload = upload;
+      this.useRootMethod = useRootMethod;
+    }
+
+    @Override
+    public Void call() throws IOException, PicasaAuthException,
+        InterruptedException {
+      try {
+        if (upload)
+          upload();
+        else
+          download();
+      } finally {
+        discard();
+      }
+      return null;
+    }
+
+    /**
+     * Releases the local photo of the transfer. Called in place of
+     * {@link #call()} for a transfer that's never going to run.
+     */
+    public void discard() {
+      if (localPhoto != null)
+        localPhoto.release();
+    }
+
+    private void upload() throws IOException, PicasaAuthException {
+      Log.i(TAG, "Local -> Remote  for: " + contact.displayName);
+
+      // The local photo was validated while being copied to the temp file.
+
+      if (!localPhotoComplete) {
+        Log.w(TAG, "Local photo for " + contact.displayName
+            + " is corrupted, ignoring");
+        return;
+      }
+
+      boolean remotePhotoExists = remotePhoto != null;
+      if (!remotePhotoExists) {
+        remotePhoto = album.createPhoto();
+        remotePhoto.title = sourceIdToFilename(contact.sourceId);
+        remotePhoto.summary = contact.displayName;
+      }
+
+      InputStream is = localPhoto.openInputStream();
+      try {
+        remotePhoto.setPhotoStream(is, localPhoto.length());
+        remotePhoto = remotePhoto.save();
+      } finally {
+        is.close();
+      }
+
+      if (!remotePhotoExists) {
+        Log.i(TAG, "Insert to remote: " + contact.displayName);
+        inserted = true;
+      } else {
+        Log.i(TAG, "Updated remote: " + contact.displayName);
+        updated = true;
+      }
+
+      contact.remoteHash = remotePhoto.getUniqueId();
+      contact.localHash = localHash;
+      contact.setHashed();
+      metaUpdated = true;
+    }
+
+    private void download() throws IOException, PicasaAuthException,
+        InterruptedException {
+      Log.i(TAG, "Remote -> Local for: " + contact.displayName);
+
+      if (!updateLocalFromRemote(account, contact, remotePhoto,
+          useRootMethod.get()))
+        useRootMethod.set(false);
+
+      // The saved photo gets a new file, so its hash is taken again on the
+      // next sync.
+
+      contact.clearHashed();
+      localSaved = true;
+      metaUpdated = true;
+    }
   }
 
   private void performSyncAuthWrapped(Account account, String authority,
-      SyncResult syncResult, String authToken, File tempPhoto)
+      SyncResult syncResult, String authToken, boolean incremental)
       throws PicasaAuthException, IOException, InterruptedException {
-    tempPhoto.delete();
 
-    boolean useRootMethod = true;
+    AtomicBoolean useRootMethod = new AtomicBoolean(true);
     boolean localSaved = false;
 
     PicasawebService pws = new PicasawebService(getContext());
     pws.authToken = authToken;
 
     PicasaAlbum album = ensureAlbumExists(pws);
-    Hashtable<String, PicasaPhoto> serverEntries = retrieveServerEntries(
-        account.name, pws, album);
+    ServerEntries serverEntries = retrieveServerEntries(account.name, pws,
+        album, incremental);
 
     Collection<Contact> localContacts = getLocalContacts(account.name);
     if (localContacts == null)
       throw new IOException("Failed to retrieve list of local contacts.");
 
-    for (Contact contact : localContacts) {
+    LocalMetaWriter metaWriter = new LocalMetaWriter(
+        SyncStateDatabase.getInstance(getContext()), account.name);
 
-      String localHash = makeCopyInCache(contact.rawContactId, tempPhoto);
-      boolean localPhotoExists = localHash != null;
-      localHash = localPhotoExists ? localHash : "";
+    // Transfers are queued in contact order and their results are collected in
+    // the same order, with only a bounded number of them in flight.
 
-      PicasaPhoto remotePhoto = getRemoteEntry(serverEntries, contact);
-      boolean remotePhotoExists = remotePhoto != null;
-      boolean skipEntry = false;
+    ExecutorService executor = Executors.newFixedThreadPool(transferThreads);
+    LinkedList<Transfer> transfers = new LinkedList<Transfer>();
+    LinkedList<Future<Void>> futures = new LinkedList<Future<Void>>();
 
-      FileInputStream fis = null;
-      boolean metaUpdated = false;
+    // Local photos are hashed in parallel, a bounded number of contacts ahead
+    // of the one being synced.
 
-      if (OVERRIDE_TAG.equals(contact.localHash)) {
-        contact.remoteHash = remotePhotoExists ? remotePhoto.getUniqueId() : "";
-        contact.localHash = "";
-        metaUpdated = true;
-      } else if (OVERRIDE_TAG.equals(contact.remoteHash)) {
-        contact.localHash = localHash;
-        contact.remoteHash = "";
-        metaUpdated = true;
-      }
+    ArrayList<Contact> contacts = new ArrayList<Contact>(localContacts);
+    ExecutorService hashExecutor = Executors.newFixedThreadPool(hashThreads);
+    LinkedList<Future<LocalPhoto>> hashes = new LinkedList<Future<LocalPhoto>>();
+    int hashesSubmitted = 0;
 
-      try {
+    try {
+      for (int i = 0; i < contacts.size(); i++) {
 
-        if (localPhotoExists && !contact.localHash.equals(localHash)) {
-          Log.i(TAG, "Local -> Remote  for: " + contact.displayName);
+        // Keep hashing contacts ahead of the one at hand
 
-          // Ensure the local file is valid by decoding it once and throwing
-          // away the result.
+        while (hashesSubmitted < contacts.size()
+            && hashesSubmitted < i + hashThreads * 2)
+          hashes.add(hashExecutor.submit(new HashTask(contacts
+              .get(hashesSubmitted++))));
 
-          if (!tempPhoto.exists())
-            makeCopyInCache(contact.rawContactId, tempPhoto);
+        Contact contact = contacts.get(i);
+        LocalPhoto local = finishHash(hashes.removeFirst());
+        PhotoBuffer localPhoto = local.copy;
+        boolean localPhotoQueued = false;
 
-          if (BitmapFactory.decodeFile(tempPhoto.getAbsolutePath()) == null) {
-            Log.w(TAG, "Local photo for " + contact.displayName
-                + " is corrupted, ignoring");
-            continue;
+        try {
+          boolean metaUpdated = !contact.stored;
+
+          boolean localPhotoExists = local.exists;
+          String localHash = local.hash;
+          boolean localPhotoComplete = local.complete;
+          if (local.rehashed && localHash.equals(contact.localHash)) {
+            contact.setHashed();
+            metaUpdated = true;
           }
 
-          if (!remotePhotoExists) {
-            remotePhoto = album.createPhoto();
-            remotePhoto.title = sourceIdToFilename(contact.sourceId);
-            remotePhoto.summary = contact.displayName;
+          PicasaPhoto remotePhoto = getRemoteEntry(serverEntries, contact);
+          boolean remotePhotoExists = remotePhoto != null;
+
+          // Forcing one side onto the other is a matter of making the other
+          // side look in sync and this side changed.
+
+          int pending = contact.pending;
+          if ((pending & SyncStateDatabase.PENDING_UPLOAD) != 0) {
+            contact.remoteHash = remotePhotoExists ? remotePhoto
+                .getUniqueId() : "";
+            contact.localHash = "";
+            contact.clearHashed();
+          } else if ((pending & SyncStateDatabase.PENDING_DOWNLOAD) != 0) {
+            contact.localHash = localHash;
+            if (localPhotoExists)
+              contact.setHashed();
+            else
+              contact.clearHashed();
+            contact.remoteHash = "";
+          }
+          if (pending != 0) {
+            contact.pendingDone = pending;
+            metaUpdated = true;
           }
 
-          fis = new FileInputStream(tempPhoto);
-          remotePhoto.setPhotoStream(fis);
-          remotePhoto = remotePhoto.save();
-          fis.close();
-
-          if (!remotePhotoExists) {
-            Log.i(TAG, "Insert to remote: " + contact.displayName);
-            syncResult.stats.numInserts++;
-          } else {
-            Log.i(TAG, "Updated remote: " + contact.displayName);
-            syncResult.stats.numUpdates++;
+          Transfer transfer = null;
+          if (localPhotoExists && !contact.localHash.equals(localHash)) {
+            transfer = new Transfer(account.name, album, contact, remotePhoto,
+                localPhoto, localHash, localPhotoComplete, true, useRootMethod);
+            localPhotoQueued = true;
+          } else if (remotePhotoExists
+              && !remotePhoto.getUniqueId().equals(contact.remoteHash)) {
+            transfer = new Transfer(account.name, album, contact, remotePhoto,
+                null, localHash, false, false, useRootMethod);
           }
 
-          contact.remoteHash = remotePhoto.getUniqueId();
-          contact.localHash = localHash;
-          metaUpdated = true;
+          if (transfer == null) {
+            if (metaUpdated)
+              metaWriter.add(contact);
+            continue;
+          }
 
-        } else if (remotePhotoExists
-            && !remotePhoto.getUniqueId().equals(contact.remoteHash)) {
-          Log.i(TAG, "Remote -> Local for: " + contact.displayName);
+          transfer.metaUpdated = metaUpdated;
+          transfers.add(transfer);
+          futures.add(executor.submit(transfer));
 
-          useRootMethod = useRootMethod
-              && updateLocalFromRemote(account.name, contact, remotePhoto,
-                  useRootMethod);
-          localSaved = true;
-          metaUpdated = true;
+        } finally {
+          if (localPhoto != null && !localPhotoQueued)
+            localPhoto.release();
         }
 
-      } catch (IOException e) {
-        Log.e(TAG, "Skipping entry due to IOException: " + e.getMessage());
-        syncResult.stats.numIoExceptions++;
-        skipEntry = true;
-      } finally {
-        if (fis != null)
+        while (futures.size() >= transferThreads * 2)
+          localSaved |= finishTransfer(transfers.removeFirst(),
+              futures.removeFirst(), syncResult, metaWriter);
+      }
+
+      while (!futures.isEmpty())
+        localSaved |= finishTransfer(transfers.removeFirst(),
+            futures.removeFirst(), syncResult, metaWriter);
+
+    } finally {
+      hashExecutor.shutdownNow();
+      for (Future<LocalPhoto> hash : hashes)
+        if (!hash.cancel(false))
           try {
-            fis.close();
+            LocalPhoto local = finishHash(hash);
+            if (local.copy != null)
+              local.copy.release();
           } catch (IOException e) {}
-        if (metaUpdated && !updateLocalMeta(contact))
-          Log.e(TAG, "Couldn't update local meta for " + contact.displayName);
-        tempPhoto.delete();
-      }
 
-      if (skipEntry)
-        syncResult.stats.numSkippedEntries++;
+      // Transfers left over after an abort or error that haven't started yet
+      // never will, and the running ones are interrupted.
+
+      while (!transfers.isEmpty()) {
+        Transfer transfer = transfers.removeFirst();
+        if (futures.removeFirst().cancel(false))
+          transfer.discard();
+      }
+      executor.shutdownNow();
+      metaWriter.flush();
     }
 
-    if (useRootMethod && localSaved)
+    Log.d(TAG, "Picasaweb transport: " + pws.getTransportStats());
+
+    if (useRootMethod.get() && localSaved)
       killContactProvider();
   }
 
+  private static LocalPhoto finishHash(Future<LocalPhoto> future)
+      throws IOException, InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /**
+   * Waits for a transfer to finish and applies its outcome to the local meta
+   * and sync stats.
+   * 
+   * @return <code>true</code> if the transfer saved a photo locally.
+   */
+  private boolean finishTransfer(Transfer transfer, Future<Void> future,
+      SyncResult syncResult, LocalMetaWriter metaWriter)
+      throws PicasaAuthException, InterruptedException {
+    Contact contact = transfer.contact;
+    try {
+      future.get();
+      if (transfer.inserted)
+        syncResult.stats.numInserts++;
+      if (transfer.updated)
+        syncResult.stats.numUpdates++;
+      return transfer.localSaved;
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof PicasaAuthException)
+        throw (PicasaAuthException) cause;
+      if (cause instanceof InterruptedException)
+        throw (InterruptedException) cause;
+      if (!(cause instanceof IOException))
+        throw new RuntimeException(cause);
+      Log.e(TAG, "Skipping entry due to IOException: " + cause.getMessage());
+      syncResult.stats.numIoExceptions++;
+      syncResult.stats.numSkippedEntries++;
+      return false;
+    } finally {
+      if (transfer.metaUpdated)
+        metaWriter.add(contact);
+    }
+  }
+
   private boolean updateLocalFromRemote(String account, Contact contact,
       PicasaPhoto remotePhoto, boolean useRootMethod) throws IOException,
       PicasaAuthException, InterruptedException {
@@ -654,34 +1382,24 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
       md5 = MessageDigest.getInstance("MD5");
     } catch (NoSuchAlgorithmException e) {}
 
-    byte[] buffer = new byte[4096];
-    int bytesRead;
-
-    File tempRawRemote = File.createTempFile("rawremote", "", getContext()
-        .getCacheDir());
+    PhotoBuffer rawRemote = photoBuffers.obtain();
+    PhotoCommitWatcher watcher = new PhotoCommitWatcher(getContext()
+        .getContentResolver(), contact.rawContactId);
     AssetFileDescriptor fd = null;
-    FileOutputStream fos = null;
-    FileInputStream fis = null;
+    OutputStream fos = null;
+    InputStream fis = null;
 
     try {
 
       String rawPhotoHash;
       String savedPhotoHash = null;
 
-      fos = new FileOutputStream(tempRawRemote);
-      remotePhoto.downloadPhoto(fos);
-      fos.close();
-
-      // Calculate the hash of the downloaded photo
+      // Hash the photo while it's being downloaded. It is only handed to the
+      // provider once complete, as the provider would otherwise commit
+      // whatever part of it was received should the download fail.
 
-      fis = new FileInputStream(tempRawRemote);
-      md5.reset();
-      bytesRead = fis.read(buffer);
-      while (bytesRead >= 0) {
-        md5.update(buffer, 0, bytesRead);
-        bytesRead = fis.read(buffer);
-      }
-      fis.close();
+      remotePhoto.downloadPhoto(new DigestOutputStream(rawRemote, md5));
+      rawRemote.close();
       rawPhotoHash = toHex(md5.digest());
 
       // Delete the current picture
@@ -711,7 +1429,8 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 
       // Store the image using android API as to update its database
 
-      fis = new FileInputStream(tempRawRemote);
+      watcher.start();
+      fis = rawRemote.openInputStream();
 
       Uri rawContactPhotoUri = Uri
           .withAppendedPath(
@@ -724,11 +1443,7 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
           rawContactPhotoUri, "w");
       fos = fd.createOutputStream();
 
-      bytesRead = fis.read(buffer);
-      while (bytesRead >= 0) {
-        fos.write(buffer, 0, bytesRead);
-        bytesRead = fis.read(buffer);
-      }
+      Streams.copy(fis, fos);
 
       fos.close();
       fd.close();
@@ -736,85 +1451,36 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 
       // Wait until its file ID is available
 
-      int fileId = -1;
-      Uri contactsUri = ContactsContract.Data.CONTENT_URI.buildUpon()
-          .appendQueryParameter(RawContacts.ACCOUNT_NAME, account)
-          .appendQueryParameter(RawContacts.ACCOUNT_TYPE, ACCOUNT_TYPE).build();
-
-      int retryTime = 0;
-      for (; retryTime < WAIT_TIME_DB; retryTime += WAIT_TIME_INT) {
-
-        Cursor cursor = getContext().getContentResolver()
-            .query(
-                contactsUri,
-                new String[] { Photo.PHOTO_FILE_ID,
-                    GroupMembership.RAW_CONTACT_ID },
-                GroupMembership.RAW_CONTACT_ID + " = ?",
-                new String[] { contact.rawContactId + "" }, null);
-
-        try {
-          if (cursor.moveToFirst()) {
-
-            int colIndex = cursor.getColumnIndex(Photo.PHOTO_FILE_ID);
-            if (!cursor.isNull(colIndex)) {
-              fileId = cursor.getInt(colIndex);
-              break;
-            }
-          }
-        } finally {
-          cursor.close();
-        }
-
-        Thread.sleep(WAIT_TIME_INT);
-      }
-
+      long deadline = SystemClock.uptimeMillis() + WAIT_TIME_DB;
+      int fileId = watcher.awaitFileId(deadline);
       if (fileId < 0)
         throw new IOException("Couldn't get file ID of saved photo");
 
       // Wait until the actual file is available
 
-      boolean fileAvailable = false;
-      for (; retryTime < WAIT_TIME_DB; retryTime += WAIT_TIME_INT) {
-        try {
-          fd = getContext().getContentResolver().openAssetFileDescriptor(
-              rawContactPhotoUri, "r");
-          fis = fd.createInputStream();
-          md5.reset();
-
-          bytesRead = fis.read(buffer);
-          while (bytesRead >= 0) {
-            md5.update(buffer, 0, bytesRead);
-            bytesRead = fis.read(buffer);
-          }
-          savedPhotoHash = toHex(md5.digest());
-
-          fis.close();
-          fd.close();
-          fileAvailable = true;
-          break;
-        } catch (FileNotFoundException e) {} finally {
-          try {
-            fis.close();
-          } catch (IOException e) {}
-          try {
-            fd.close();
-          } catch (IOException e) {}
-        }
-
-        Thread.sleep(WAIT_TIME_INT);
-      }
-
-      if (!fileAvailable)
+      fd = watcher.awaitPhotoFile(deadline);
+      if (fd == null)
         throw new IOException("Couldn't get file content of saved photo");
 
       // Use the root method to replace the high quality photo
 
       boolean rootSuccess = false;
       if (useRootMethod) {
-        if (rootReplaceImage(tempRawRemote.getAbsolutePath(), fileId))
+        if (rootReplaceImage(rawRemote.toFile().getAbsolutePath(), fileId))
           rootSuccess = true;
       }
 
+      // Only if the photo stored by the provider is kept, it needs hashing
+
+      if (!rootSuccess) {
+        fis = fd.createInputStream();
+        md5.reset();
+        Streams.copy(fis, null, md5);
+        savedPhotoHash = toHex(md5.digest());
+        fis.close();
+      }
+      fd.close();
+
       // Update local meta
 
       contact.localHash = rootSuccess ? rawPhotoHash : savedPhotoHash;
@@ -833,7 +1499,8 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         } catch (IOException e) {}
       if (fd != null)
         fd.close();
-      tempRawRemote.delete();
+      watcher.stop();
+      rawRemote.release();
     }
 
   }
@@ -844,7 +1511,7 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     for (RunningAppProcessInfo proc : am.getRunningAppProcesses())
       for (String p : proc.pkgList)
         if (CONTACT_PROVIDER.equals(p))
-          if (Util.runRoot("kill " + proc.pid + "\n"))
+          if (Util.runRoot("kill " + proc.pid))
             return true;
           else
             return false;
@@ -868,9 +1535,17 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     // Modify the permission of our tmp file and move it over to the correct
     // location + restart contact storage service
 
-    if (!Util.runRoot("chown " + uid + ":" + uid + " " + src + "\nchmod 600 "
-        + src + "\nmv " + src + " " + dstDir + "/" + fileId + "\n"))
+    int[] results = new RootShell.Script()
+        .add("chown " + uid + ":" + uid + " " + src).add("chmod 600 " + src)
+        .add("mv " + src + " " + dstDir + "/" + fileId).run();
+    if (results == null)
       return false;
+    for (int i = 0; i < results.length; i++)
+      if (results[i] != 0) {
+        Log.w(TAG, "Root command " + i + " of photo replacement failed with "
+            + results[i]);
+        return false;
+      }
 
     return true;
 
@@ -0,0 +1,295 @@
+/**
+ * SyncStateDatabase.java - Per contact sync state.
+ *
+ * Copyright (C) 2012 Mansour <mansour@oxplot.com>
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.oxplot.contactphotosync;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Private store of the sync state of each raw contact, i.e. what its local
+ * and remote photos were when they were last in sync, and whether the user
+ * has asked for one side to be forced onto the other. It's kept apart from
+ * the contacts provider so that reading it is one indexed query and writing
+ * it neither goes through the provider nor bumps raw contact versions.
+ * <p>
+ * The sync adapter and the activities run in separate processes, each with
+ * its own instance over the same database file.
+ */
+class SyncStateDatabase extends SQLiteOpenHelper {
+
+  /**
+   * Pending flag forcing the local photo onto the server.
+   */
+  public static final int PENDING_UPLOAD = 1;
+
+  /**
+   * Pending flag forcing the server photo onto the local contact.
+   */
+  public static final int PENDING_DOWNLOAD = 2;
+
+  private static final String DB_NAME = "syncstate.db";
+  private static final int DB_VERSION = 1;
+
+  private static final String TABLE = "sync_state";
+  private static final String RAW_CONTACT_ID = "raw_contact_id";
+  private static final String ACCOUNT = "account";
+  private static final String SOURCE_ID = "source_id";
+  private static final String LOCAL_HASH = "local_hash";
+  private static final String REMOTE_HASH = "remote_hash";
+  private static final String HASHED_FILE_ID = "hashed_file_id";
+  private static final String HASHED_LENGTH = "hashed_length";
+  private static final String LAST_SYNC = "last_sync";
+  private static final String PENDING = "pending";
+
+  private static final String[] PROJECTION = new String[] { RAW_CONTACT_ID,
+      SOURCE_ID, LOCAL_HASH, REMOTE_HASH, HASHED_FILE_ID, HASHED_LENGTH,
+      LAST_SYNC, PENDING };
+
+  private static SyncStateDatabase instance;
+
+  /**
+   * Sync state of a single raw contact.
+   */
+  public static class SyncState {
+    public int rawContactId;
+    public String sourceId;
+
+    /**
+     * Hash of the local photo when it was last in sync, empty if there was
+     * none.
+     */
+    public String localHash = "";
+
+    /**
+     * Unique ID of the server photo when it was last in sync, empty if there
+     * was none.
+     */
+    public String remoteHash = "";
+
+    /**
+     * Photo file ID and photo length at the time {@link #localHash} was
+     * taken. As long as neither has changed, the local photo needn't be
+     * hashed again. -1 if unknown.
+     */
+    public long hashedFileId = -1;
+    public long hashedLength = -1;
+
+    public long lastSync;
+
+    /**
+     * <code>PENDING_*</code> flags set by the user.
+     */
+    public int pending;
+
+    /**
+     * <code>PENDING_*</code> flags handled by the sync, cleared from the
+     * database on {@link SyncStateDatabase#save(String, Collection)}. Any
+     * flags set in the meantime are kept.
+     */
+    public int pendingDone;
+
+    /**
+     * <code>true</code> if this state was found in or saved to the database.
+     */
+    public boolean stored;
+  }
+
+  public static synchronized SyncStateDatabase getInstance(Context context) {
+    if (instance == null)
+      instance = new SyncStateDatabase(context.getApplicationContext());
+    return instance;
+  }
+
+  private SyncStateDatabase(Context context) {
+    super(context, DB_NAME, null, DB_VERSION);
+  }
+
+  @Override
+  public void onCreate(SQLiteDatabase db) {
+    db.execSQL("CREATE TABLE " + TABLE + " (" + RAW_CONTACT_ID
+        + " INTEGER PRIMARY KEY, " + ACCOUNT + " TEXT, " + SOURCE_ID
+        + " TEXT, " + LOCAL_HASH + " TEXT NOT NULL DEFAULT '', "
+        + REMOTE_HASH + " TEXT NOT NULL DEFAULT '', " + HASHED_FILE_ID
+        + " INTEGER NOT NULL DEFAULT -1, " + HASHED_LENGTH
+        + " INTEGER NOT NULL DEFAULT -1, " + LAST_SYNC
+        + " INTEGER NOT NULL DEFAULT 0, " + PENDING
+        + " INTEGER NOT NULL DEFAULT 0)");
+    db.execSQL("CREATE INDEX " + TABLE + "_account_source ON " + TABLE + " ("
+        + ACCOUNT + ", " + SOURCE_ID + ")");
+  }
+
+  @Override
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+    onCreate(db);
+  }
+
+  /**
+   * Fills in <code>states</code> from the stored states of
+   * <code>account</code>, matching them by raw contact ID or failing that by
+   * source ID (e.g. when the raw contact was recreated by the provider).
+   * States not found are left as they are. Stored states not matching any of
+   * <code>states</code> belong to raw contacts that are gone and are deleted.
+   */
+  public void load(String account, Collection<? extends SyncState> states) {
+    SQLiteDatabase db = getWritableDatabase();
+    HashMap<Integer, SyncState> byId = new HashMap<Integer, SyncState>();
+    HashMap<String, SyncState> bySourceId = new HashMap<String, SyncState>();
+    for (SyncState s : states) {
+      byId.put(s.rawContactId, s);
+      if (s.sourceId != null)
+        bySourceId.put(s.sourceId, s);
+    }
+
+    ArrayList<Integer> stale = new ArrayList<Integer>();
+    Cursor cursor = db.query(TABLE, PROJECTION, ACCOUNT + " = ?",
+        new String[] { account }, null, null, null);
+    try {
+      for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+        int id = cursor.getInt(0);
+        SyncState s = byId.get(id);
+        if (s == null && !cursor.isNull(1))
+          s = bySourceId.get(cursor.getString(1));
+
+        // Rows of raw contacts that are gone or have been recreated under a
+        // new ID are dropped once read.
+
+        if (s == null || s.rawContactId != id)
+          stale.add(id);
+        if (s == null || s.stored)
+          continue;
+
+        s.localHash = cursor.getString(2);
+        s.remoteHash = cursor.getString(3);
+        s.hashedFileId = cursor.getLong(4);
+        s.hashedLength = cursor.getLong(5);
+        s.lastSync = cursor.getLong(6);
+        s.pending = cursor.getInt(7);
+        s.stored = s.rawContactId == id;
+      }
+    } finally {
+      cursor.close();
+    }
+
+    if (stale.isEmpty())
+      return;
+    db.beginTransaction();
+    try {
+      SQLiteStatement delete = db.compileStatement("DELETE FROM " + TABLE
+          + " WHERE " + RAW_CONTACT_ID + " = ?");
+      for (int id : stale) {
+        delete.bindLong(1, id);
+        delete.execute();
+      }
+      delete.close();
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Stores <code>states</code> in a single transaction, stamping them with
+   * the current time.
+   */
+  public void save(String account, Collection<? extends SyncState> states) {
+    SQLiteDatabase db = getWritableDatabase();
+    long now = System.currentTimeMillis();
+    db.beginTransaction();
+    try {
+      SQLiteStatement insert = compileInsert(db);
+      SQLiteStatement update = db.compileStatement("UPDATE " + TABLE
+          + " SET " + ACCOUNT + " = ?, " + SOURCE_ID + " = ?, " + LOCAL_HASH
+          + " = ?, " + REMOTE_HASH + " = ?, " + HASHED_FILE_ID + " = ?, "
+          + HASHED_LENGTH + " = ?, " + LAST_SYNC + " = ?, " + PENDING + " = "
+          + PENDING + " & ~? WHERE " + RAW_CONTACT_ID + " = ?");
+      for (SyncState s : states) {
+        insert.bindLong(1, s.rawContactId);
+        insert.bindString(2, account);
+        insert.executeInsert();
+
+        update.bindString(1, account);
+        if (s.sourceId == null)
+          update.bindNull(2);
+        else
+          update.bindString(2, s.sourceId);
+        update.bindString(3, s.localHash);
+        update.bindString(4, s.remoteHash);
+        update.bindLong(5, s.hashedFileId);
+        update.bindLong(6, s.hashedLength);
+        update.bindLong(7, now);
+        update.bindLong(8, s.pendingDone);
+        update.bindLong(9, s.rawContactId);
+        update.execute();
+
+        s.lastSync = now;
+        s.stored = true;
+      }
+      insert.close();
+      update.close();
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Sets the pending flags of the given raw contacts of <code>account</code>
+   * to <code>pending</code>, replacing any set before.
+   */
+  public void setPending(String account, List<Integer> rawContactIds,
+      int pending) {
+    SQLiteDatabase db = getWritableDatabase();
+    db.beginTransaction();
+    try {
+      SQLiteStatement insert = compileInsert(db);
+      SQLiteStatement update = db.compileStatement("UPDATE " + TABLE
+          + " SET " + PENDING + " = ? WHERE " + RAW_CONTACT_ID + " = ?");
+      for (int id : rawContactIds) {
+        insert.bindLong(1, id);
+        insert.bindString(2, account);
+        insert.executeInsert();
+        update.bindLong(1, pending);
+        update.bindLong(2, id);
+        update.execute();
+      }
+      insert.close();
+      update.close();
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  private static SQLiteStatement compileInsert(SQLiteDatabase db) {
+    return db.compileStatement("INSERT OR IGNORE INTO " + TABLE + " ("
+        + RAW_CONTACT_ID + ", " + ACCOUNT + ") VALUES (?, ?)");
+  }
+}
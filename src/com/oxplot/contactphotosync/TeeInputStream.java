@@ -0,0 +1,101 @@
+/**
+ * TeeInputStream.java - Copies what's read from a stream elsewhere.
+ *
+ * Copyright (C) 2012 Mansour <mansour@oxplot.com>
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.oxplot.contactphotosync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+/**
+ * Passes every byte read (or skipped) from the source stream on to a digest
+ * and/or an output stream, so that a single read of the source can feed
+ * several consumers.
+ */
+class TeeInputStream extends InputStream {
+
+  private final InputStream in;
+  private final OutputStream out;
+  private final MessageDigest digest;
+  private final byte[] skipBuffer = new byte[4096];
+
+  /**
+   * @param out Output stream to copy to, or <code>null</code>.
+   * @param digest Digest to update, or <code>null</code>.
+   */
+  public TeeInputStream(InputStream in, OutputStream out,
+      MessageDigest digest) {
+    this.in = in;
+    this.out = out;
+    this.digest = digest;
+  }
+
+  @Override
+  public int read() throws IOException {
+    int b = in.read();
+    if (b >= 0) {
+      if (out != null)
+        out.write(b);
+      if (digest != null)
+        digest.update((byte) b);
+    }
+    return b;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    int bytesRead = in.read(buffer, offset, length);
+    if (bytesRead > 0) {
+      if (out != null)
+        out.write(buffer, offset, bytesRead);
+      if (digest != null)
+        digest.update(buffer, offset, bytesRead);
+    }
+    return bytesRead;
+  }
+
+  @Override
+  public long skip(long count) throws IOException {
+    // Skipped bytes must still reach the consumers.
+    int bytesRead = read(skipBuffer, 0,
+        (int) Math.min(count, skipBuffer.length));
+    return bytesRead < 0 ? 0 : bytesRead;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return in.available();
+  }
+
+  /**
+   * Reads the rest of the source so that all of it is passed on.
+   */
+  public void drain() throws IOException {
+    while (read(skipBuffer, 0, skipBuffer.length) >= 0)
+      ;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+}
@@ -0,0 +1,164 @@
+/**
+ * ThumbCache.java - In memory cache of contact thumbnails.
+ *
+ * Copyright (C) 2012 Mansour <mansour@oxplot.com>
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.oxplot.contactphotosync;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+
+/**
+ * Least recently used cache of contact thumbnails by raw contact ID, bounded
+ * by the total byte size of the bitmaps it holds. There's one cache per
+ * process so thumbnails outlive the activities showing them. It may be used
+ * from any thread.
+ */
+class ThumbCache {
+
+  /**
+   * Stands for a contact without a photo.
+   */
+  public static final Bitmap NO_PHOTO = Bitmap.createBitmap(1, 1,
+      Config.ALPHA_8);
+
+  /**
+   * Size charged for a {@link #NO_PHOTO} entry, roughly what the entry
+   * itself takes, so that they're bounded along with the bitmaps.
+   */
+  private static final int NO_PHOTO_SIZE = 64;
+
+  private static ThumbCache instance;
+
+  private final LinkedHashMap<Integer, Bitmap> bitmaps = new LinkedHashMap<Integer, Bitmap>(16, 0.75f, true);
+  private final int maxSize;
+  private int size;
+  private int hits;
+  private int misses;
+  private int evictions;
+
+  /**
+   * @return The cache of this process, given
+   *         <code>1 / config_thumb_mem_cache_fraction</code> of the memory
+   *         class of the app.
+   */
+  public static synchronized ThumbCache getInstance(Context context) {
+    if (instance == null) {
+      ActivityManager am = (ActivityManager) context
+          .getSystemService(Context.ACTIVITY_SERVICE);
+      int fraction = Math.max(1, context.getResources().getInteger(
+          R.integer.config_thumb_mem_cache_fraction));
+      instance = new ThumbCache(am.getMemoryClass() * 1024 * 1024 / fraction);
+    }
+    return instance;
+  }
+
+  /**
+   * @param maxSize Maximum total byte size of the cached bitmaps.
+   */
+  public ThumbCache(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * @return The thumbnail, {@link #NO_PHOTO} or <code>null</code> if not
+   *         cached.
+   */
+  public synchronized Bitmap get(int rawContactId) {
+    Bitmap bitmap = bitmaps.get(rawContactId);
+    if (bitmap == null)
+      misses++;
+    else
+      hits++;
+    return bitmap;
+  }
+
+  /**
+   * Caches <code>bitmap</code> as the most recently used thumbnail, evicting
+   * the least recently used ones to make room. A bitmap larger than the whole
+   * cache isn't cached.
+   */
+  public synchronized void put(int rawContactId, Bitmap bitmap) {
+    remove(rawContactId);
+    int bitmapSize = sizeOf(bitmap);
+    if (bitmapSize > maxSize)
+      return;
+    bitmaps.put(rawContactId, bitmap);
+    size += bitmapSize;
+    trimToSize(maxSize);
+  }
+
+  public synchronized void remove(int rawContactId) {
+    Bitmap bitmap = bitmaps.remove(rawContactId);
+    if (bitmap != null)
+      size -= sizeOf(bitmap);
+  }
+
+  public synchronized void evictAll() {
+    evictions += bitmaps.size();
+    bitmaps.clear();
+    size = 0;
+  }
+
+  /**
+   * Evicts least recently used thumbnails until the cache is no larger than
+   * <code>targetSize</code> bytes.
+   */
+  public synchronized void trimToSize(int targetSize) {
+    Iterator<Map.Entry<Integer, Bitmap>> it = bitmaps.entrySet().iterator();
+    while (size > targetSize && it.hasNext()) {
+      size -= sizeOf(it.next().getValue());
+      it.remove();
+      evictions++;
+    }
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  public synchronized int getHitCount() {
+    return hits;
+  }
+
+  public synchronized int getMissCount() {
+    return misses;
+  }
+
+  public synchronized int getEvictionCount() {
+    return evictions;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "ThumbCache[size=" + size + ", maxSize=" + maxSize + ", count="
+        + bitmaps.size() + ", hits=" + hits + ", misses=" + misses
+        + ", evictions=" + evictions + "]";
+  }
+
+  private static int sizeOf(Bitmap bitmap) {
+    return bitmap == NO_PHOTO ? NO_PHOTO_SIZE : bitmap.getByteCount();
+  }
+}
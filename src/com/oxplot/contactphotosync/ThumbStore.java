@@ -0,0 +1,484 @@
+/**
+ * ThumbStore.java - Packed on disk store of contact thumbnails.
+ *
+ * Copyright (C) 2012 Mansour <mansour@oxplot.com>
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.oxplot.contactphotosync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+/**
+ * Contact thumbnails by raw contact ID, packed as raw RGB_565 pixels into
+ * fixed size slots of a single memory mapped file. Each is kept along with
+ * the ID of the photo file it was made from. The file starts with an index
+ * of the slots:
+ *
+ * <pre>
+ * header: magic, version, thumbnail size, capacity (int each)
+ * index:  capacity x (raw contact ID or 0 if free, width << 16 | height,
+ *         photo file ID (long))
+ * data:   page aligned slots of thumbnail size ^ 2 x 2 bytes
+ * </pre>
+ *
+ * Reading a thumbnail is a copy out of the mapping; no files are opened and
+ * nothing is decoded. Thumbnails are scaled and written on a background
+ * thread and can be read back in the meantime. Once the store is at capacity,
+ * the least recently used thumbnail is evicted. Freed slots are compacted
+ * away in the background so the file shrinks along with the store. It may be
+ * used from any thread.
+ */
+class ThumbStore {
+
+  private static final String TAG = "ThumbStore";
+  private static final String FILE_NAME = "thumbs.dat";
+
+  /**
+   * Directory of the per contact thumbnail files this store replaces.
+   */
+  private static final String LEGACY_DIR = "thumbcache";
+
+  private static final int MAGIC = 0x41505453;
+  private static final int VERSION = 2;
+  private static final int HEADER_SIZE = 16;
+  private static final int ENTRY_SIZE = 16;
+  private static final int PAGE_SIZE = 4096;
+
+  /**
+   * Number of slots the file grows by at least. Past that it doubles, as
+   * each growth maps the whole file anew and the old mapping lingers until
+   * it's collected.
+   */
+  private static final int GROW_SLOTS = 32;
+
+  private static ThumbStore instance;
+
+  private final File file;
+  private final File legacyDir;
+  private final int thumbSize;
+  private final int capacity;
+  private final int slotSize;
+  private final int dataOffset;
+  private final ExecutorService writer = Executors.newSingleThreadExecutor();
+
+  /**
+   * Thumbnails put but not yet written.
+   */
+  private final SparseArray<Thumb> pendingWrites = new SparseArray<Thumb>();
+
+  /**
+   * Slots by raw contact ID.
+   */
+  private final SparseIntArray slots = new SparseIntArray();
+
+  private final int[] slotIds;
+  private final int[] slotDims;
+  private final long[] slotPhotoFileIds;
+
+  /**
+   * Value of {@link #useCount} when each slot was last read or written.
+   */
+  private final long[] slotUsed;
+  private long useCount;
+
+  /**
+   * Number of slots in the file and how many of them are taken.
+   */
+  private int slotCount;
+  private int liveCount;
+
+  private boolean compactionScheduled;
+  private RandomAccessFile raf;
+  private MappedByteBuffer map;
+
+  public static synchronized ThumbStore getInstance(Context context) {
+    if (instance == null)
+      instance = new ThumbStore(context.getCacheDir(), context.getResources()
+          .getInteger(R.integer.config_list_thumb_size), context
+          .getResources().getInteger(R.integer.config_thumb_store_max_entries));
+    return instance;
+  }
+
+  /**
+   * Creates a store in <code>dir</code> and opens it in the background.
+   * Until it's open, the store is empty.
+   *
+   * @param thumbSize Maximum width and height of thumbnails. Larger ones are
+   *          scaled down.
+   * @param capacity Maximum number of thumbnails kept.
+   */
+  public ThumbStore(File dir, int thumbSize, int capacity) {
+    file = new File(dir, FILE_NAME);
+    legacyDir = new File(dir, LEGACY_DIR);
+    this.thumbSize = thumbSize;
+    this.capacity = capacity;
+    slotSize = thumbSize * thumbSize * 2;
+    dataOffset = (HEADER_SIZE + capacity * ENTRY_SIZE + PAGE_SIZE - 1)
+        / PAGE_SIZE * PAGE_SIZE;
+    slotIds = new int[capacity];
+    slotDims = new int[capacity];
+    slotPhotoFileIds = new long[capacity];
+    slotUsed = new long[capacity];
+    writer.execute(new Runnable() {
+      @Override
+      public void run() {
+        open();
+      }
+    });
+  }
+
+  /**
+   * @return Thumbnail of the given contact or <code>null</code> if it's not
+   *         in the store.
+   */
+  public synchronized Bitmap get(int rawContactId) {
+    Thumb pending = pendingWrites.get(rawContactId);
+    if (pending != null)
+      return pending.bitmap;
+    int slot = slots.get(rawContactId, -1);
+    if (slot < 0)
+      return null;
+    int width = slotDims[slot] >>> 16;
+    int height = slotDims[slot] & 0xffff;
+    Bitmap bitmap = Bitmap.createBitmap(width, height, Config.RGB_565);
+    if (bitmap == null)
+      return null;
+    bitmap.copyPixelsFromBuffer(slotBuffer(slot, width * height * 2));
+    slotUsed[slot] = ++useCount;
+    return bitmap;
+  }
+
+  /**
+   * @return ID of the photo file the thumbnail of the given contact was made
+   *         from or -1 if it's not in the store.
+   */
+  public synchronized long getPhotoFileId(int rawContactId) {
+    Thumb pending = pendingWrites.get(rawContactId);
+    if (pending != null)
+      return pending.photoFileId;
+    int slot = slots.get(rawContactId, -1);
+    return slot < 0 ? -1 : slotPhotoFileIds[slot];
+  }
+
+  /**
+   * Stores <code>bitmap</code> as the thumbnail of the given contact, made
+   * from the photo file with ID <code>photoFileId</code>. The bitmap must not
+   * be modified afterwards.
+   */
+  public synchronized void put(final int rawContactId, long photoFileId,
+      Bitmap bitmap) {
+    pendingWrites.put(rawContactId, new Thumb(bitmap, photoFileId));
+    writer.execute(new Runnable() {
+      @Override
+      public void run() {
+        write(rawContactId);
+      }
+    });
+  }
+
+  public synchronized void remove(int rawContactId) {
+    pendingWrites.remove(rawContactId);
+    int slot = slots.get(rawContactId, -1);
+    if (slot < 0)
+      return;
+    free(slot);
+    scheduleCompaction();
+  }
+
+  private void open() {
+    deleteLegacyFiles();
+    try {
+      synchronized (this) {
+        raf = new RandomAccessFile(file, "rw");
+        int slotsInFile = 0;
+        if (raf.length() >= dataOffset && raf.readInt() == MAGIC
+            && raf.readInt() == VERSION && raf.readInt() == thumbSize
+            && raf.readInt() == capacity) {
+          slotsInFile = (int) Math.min(capacity, (raf.length() - dataOffset)
+              / slotSize);
+        } else {
+          raf.setLength(0);
+          raf.seek(0);
+          raf.writeInt(MAGIC);
+          raf.writeInt(VERSION);
+          raf.writeInt(thumbSize);
+          raf.writeInt(capacity);
+        }
+        resize(slotsInFile);
+
+        // Slots past the end of a truncated file are dropped
+
+        for (int slot = 0; slot < slotCount; slot++) {
+          int id = map.getInt(HEADER_SIZE + slot * ENTRY_SIZE);
+          int dims = map.getInt(HEADER_SIZE + slot * ENTRY_SIZE + 4);
+          if (id == 0 || slots.get(id, -1) >= 0 || !isValid(dims)) {
+            map.putInt(HEADER_SIZE + slot * ENTRY_SIZE, 0);
+            continue;
+          }
+          slotIds[slot] = id;
+          slotDims[slot] = dims;
+          slotPhotoFileIds[slot] = map.getLong(HEADER_SIZE + slot
+              * ENTRY_SIZE + 8);
+          slots.put(id, slot);
+          liveCount++;
+        }
+        scheduleCompaction();
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Couldn't open thumbnail store: " + e.getMessage());
+      close();
+    }
+  }
+
+  private boolean isValid(int dims) {
+    int width = dims >>> 16;
+    int height = dims & 0xffff;
+    return width > 0 && width <= thumbSize && height > 0
+        && height <= thumbSize;
+  }
+
+  private void deleteLegacyFiles() {
+    File[] files = legacyDir.listFiles();
+    if (files == null)
+      return;
+    for (File f : files)
+      f.delete();
+    legacyDir.delete();
+  }
+
+  /**
+   * Writes the pending thumbnail of the given contact, if any.
+   */
+  private void write(int rawContactId) {
+    Thumb pending;
+    synchronized (this) {
+      pending = pendingWrites.get(rawContactId);
+    }
+    if (pending == null)
+      return;
+    Bitmap thumb = toThumb(pending.bitmap);
+
+    synchronized (this) {
+
+      // A thumbnail put or removed in the meantime has the final say
+
+      if (pendingWrites.get(rawContactId) != pending)
+        return;
+      pendingWrites.remove(rawContactId);
+      if (map == null || thumb == null || thumb.getByteCount() > slotSize)
+        return;
+      try {
+        int slot = slots.get(rawContactId, -1);
+        if (slot < 0)
+          slot = allocate();
+        thumb.copyPixelsToBuffer(slotBuffer(slot, thumb.getByteCount()));
+        slotDims[slot] = thumb.getWidth() << 16 | thumb.getHeight();
+        slotIds[slot] = rawContactId;
+        slotPhotoFileIds[slot] = pending.photoFileId;
+        slotUsed[slot] = ++useCount;
+        map.putInt(HEADER_SIZE + slot * ENTRY_SIZE + 4, slotDims[slot]);
+        map.putLong(HEADER_SIZE + slot * ENTRY_SIZE + 8,
+            slotPhotoFileIds[slot]);
+        map.putInt(HEADER_SIZE + slot * ENTRY_SIZE, rawContactId);
+        if (slots.get(rawContactId, -1) < 0) {
+          slots.put(rawContactId, slot);
+          liveCount++;
+        }
+      } catch (IOException e) {
+        Log.w(TAG, "Couldn't grow thumbnail store: " + e.getMessage());
+        close();
+      }
+    }
+  }
+
+  /**
+   * @return <code>bitmap</code> scaled down to fit the slots and converted
+   *         to RGB_565, or <code>null</code> if conversion failed.
+   */
+  private Bitmap toThumb(Bitmap bitmap) {
+    int width = bitmap.getWidth();
+    int height = bitmap.getHeight();
+    if (width > thumbSize || height > thumbSize) {
+      float scale = (float) thumbSize / Math.max(width, height);
+      bitmap = Bitmap.createScaledBitmap(bitmap,
+          Math.max(1, Math.min(thumbSize, Math.round(width * scale))),
+          Math.max(1, Math.min(thumbSize, Math.round(height * scale))), true);
+    }
+    if (bitmap != null && bitmap.getConfig() != Config.RGB_565)
+      bitmap = bitmap.copy(Config.RGB_565, false);
+    return bitmap;
+  }
+
+  /**
+   * @return A free slot, growing the file or evicting the least recently
+   *         used thumbnail if need be.
+   */
+  private int allocate() throws IOException {
+    if (liveCount < slotCount) {
+      for (int slot = 0; slot < slotCount; slot++)
+        if (slotIds[slot] == 0)
+          return slot;
+    }
+    if (slotCount < capacity) {
+      int slot = slotCount;
+      resize(Math.min(capacity, Math.max(GROW_SLOTS, slotCount * 2)));
+      return slot;
+    }
+    int lru = 0;
+    for (int slot = 1; slot < slotCount; slot++)
+      if (slotUsed[slot] < slotUsed[lru])
+        lru = slot;
+    free(lru);
+    return lru;
+  }
+
+  private void free(int slot) {
+    map.putInt(HEADER_SIZE + slot * ENTRY_SIZE, 0);
+    slots.delete(slotIds[slot]);
+    slotIds[slot] = 0;
+    liveCount--;
+  }
+
+  /**
+   * Schedules compaction once three quarters or more of the slots in the
+   * file are free, so that a file just doubled isn't shrunk right back.
+   */
+  private void scheduleCompaction() {
+    if (compactionScheduled || map == null
+        || slotCount - liveCount < Math.max(GROW_SLOTS, slotCount * 3 / 4))
+      return;
+    compactionScheduled = true;
+    writer.execute(new Runnable() {
+      @Override
+      public void run() {
+        compact();
+      }
+    });
+  }
+
+  /**
+   * Moves thumbnails from the end of the file into free slots, one at a time
+   * so that readers aren't held up, and then truncates the file.
+   */
+  private void compact() {
+    for (;;) {
+      synchronized (this) {
+        if (map == null)
+          return;
+        int last = slotCount - 1;
+        while (last >= 0 && slotIds[last] == 0)
+          last--;
+        int hole = 0;
+        while (hole < last && slotIds[hole] != 0)
+          hole++;
+        if (hole >= last) {
+          compactionScheduled = false;
+          try {
+            resize(last + 1);
+          } catch (IOException e) {
+            Log.w(TAG, "Couldn't shrink thumbnail store: " + e.getMessage());
+            close();
+          }
+          return;
+        }
+        move(last, hole);
+      }
+    }
+  }
+
+  private void move(int from, int to) {
+    ByteBuffer dst = slotBuffer(to, slotSize);
+    dst.put(slotBuffer(from, slotSize));
+    int id = slotIds[from];
+    slotIds[to] = id;
+    slotDims[to] = slotDims[from];
+    slotPhotoFileIds[to] = slotPhotoFileIds[from];
+    slotUsed[to] = slotUsed[from];
+    map.putInt(HEADER_SIZE + to * ENTRY_SIZE + 4, slotDims[to]);
+    map.putLong(HEADER_SIZE + to * ENTRY_SIZE + 8, slotPhotoFileIds[to]);
+    map.putInt(HEADER_SIZE + to * ENTRY_SIZE, id);
+    map.putInt(HEADER_SIZE + from * ENTRY_SIZE, 0);
+    slotIds[from] = 0;
+    slots.put(id, to);
+  }
+
+  /**
+   * Sets the length of the file to hold <code>count</code> slots and maps it
+   * anew.
+   */
+  private void resize(int count) throws IOException {
+    long length = dataOffset + (long) count * slotSize;
+    FileChannel channel = raf.getChannel();
+    if (length > raf.length())
+      raf.setLength(length);
+    map = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+    if (length < raf.length())
+      raf.setLength(length);
+    slotCount = count;
+  }
+
+  /**
+   * Drops everything in memory and leaves the store empty for the rest of
+   * the process.
+   */
+  private synchronized void close() {
+    map = null;
+    slots.clear();
+    pendingWrites.clear();
+    for (int slot = 0; slot < capacity; slot++)
+      slotIds[slot] = 0;
+    slotCount = 0;
+    liveCount = 0;
+    if (raf != null)
+      try {
+        raf.close();
+      } catch (IOException e) {}
+  }
+
+  private ByteBuffer slotBuffer(int slot, int length) {
+    ByteBuffer buffer = map.duplicate();
+    int offset = dataOffset + slot * slotSize;
+    buffer.position(offset);
+    buffer.limit(offset + length);
+    return buffer.slice();
+  }
+
+  private static class Thumb {
+    public final Bitmap bitmap;
+    public final long photoFileId;
+
+    public Thumb(Bitmap bitmap, long photoFileId) {
+      this.bitmap = bitmap;
+      this.photoFileId = photoFileId;
+    }
+  }
+}
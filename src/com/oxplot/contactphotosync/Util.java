@@ -21,38 +21,15 @@
 
 package com.oxplot.contactphotosync;
 
-import java.io.DataOutputStream;
-import java.io.IOException;
-
 public class Util {
-  public static boolean runRoot(String dataIn) {
-    Process p = null;
-
-    try {
-      p = Runtime.getRuntime().exec("su");
-      DataOutputStream os = new DataOutputStream(p.getOutputStream());
-
-      if (dataIn != null)
-        os.writeBytes(dataIn);
-
-      os.writeBytes("\nexit\n");
-      os.flush();
-      try {
-        p.waitFor();
-        if (p.exitValue() == 0) {
-          return true;
-        } else {
-          return false;
-        }
-      } catch (InterruptedException e) {
-        return false;
-      }
 
-    } catch (IOException e) {
-      return false;
-    } finally {
-      if (p != null)
-        p.destroy();
-    }
+  /**
+   * Runs <code>script</code> in the shared root shell.
+   * 
+   * @return <code>true</code> if root is available and the last command of
+   *         the script succeeded.
+   */
+  public static boolean runRoot(String script) {
+    return new RootShell.Script().add(script == null ? "" : script).runAll();
   }
 }